@@ -0,0 +1,451 @@
+/*
+* Copyright 2015 Lyo Kato (lyo.kato@gmail.com)
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package mouthpiece.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates a MouthPieceDispatcher for each service which has
+ * @OnRead or @OnWrite methods, and checks the handler definitions
+ * which otherwise fail at runtime.
+ */
+public class MouthPieceProcessor extends AbstractProcessor {
+
+    private static final String PACKAGE = "mouthpiece.peripheral";
+    private static final String ANNOTATION_PACKAGE = PACKAGE + ".annotation";
+
+    static final String ON_READ = ANNOTATION_PACKAGE + ".OnRead";
+    static final String ON_WRITE = ANNOTATION_PACKAGE + ".OnWrite";
+    static final String NOTIFIABLE = ANNOTATION_PACKAGE + ".Notifiable";
+    static final String RESPONSE_NEEDED = ANNOTATION_PACKAGE + ".ResponseNeeded";
+    static final String MAX_NOTIFY_RATE = ANNOTATION_PACKAGE + ".MaxNotifyRate";
+    static final String BATCH = ANNOTATION_PACKAGE + ".Batch";
+    static final String READ_CACHE = ANNOTATION_PACKAGE + ".ReadCache";
+
+    private static final String SERVICE = PACKAGE + ".MouthPieceService";
+    private static final String SUFFIX = "_MouthPieceDispatcher";
+
+    private Elements elements;
+    private Types types;
+    private Filer filer;
+    private Messager messager;
+
+    @Override
+    public synchronized void init(ProcessingEnvironment env) {
+        super.init(env);
+        elements = env.getElementUtils();
+        types = env.getTypeUtils();
+        filer = env.getFiler();
+        messager = env.getMessager();
+    }
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        Set<String> names = new HashSet<String>();
+        names.add(ON_READ);
+        names.add(ON_WRITE);
+        names.add(NOTIFIABLE);
+        names.add(RESPONSE_NEEDED);
+        names.add(MAX_NOTIFY_RATE);
+        names.add(BATCH);
+        names.add(READ_CACHE);
+        return names;
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        Set<TypeElement> services = new LinkedHashSet<TypeElement>();
+        for (TypeElement annotation : annotations) {
+            for (Element e : roundEnv.getElementsAnnotatedWith(annotation)) {
+                if (e.getKind() != ElementKind.METHOD) {
+                    continue;
+                }
+                services.add((TypeElement)e.getEnclosingElement());
+            }
+        }
+        for (TypeElement service : services) {
+            processService(service);
+        }
+        return false;
+    }
+
+    private void processService(TypeElement service) {
+        TypeMirror serviceType = elements.getTypeElement(SERVICE).asType();
+        if (!types.isSubtype(types.erasure(service.asType()), serviceType)) {
+            error(service, "@OnRead and @OnWrite are only available in a subclass of " + SERVICE);
+            return;
+        }
+
+        List<HandlerDefinition> handlers = new ArrayList<HandlerDefinition>();
+        boolean valid = true;
+        // inherited handlers are included, as getMethods() does at runtime
+        for (ExecutableElement method : ElementFilter.methodsIn(elements.getAllMembers(service))) {
+            HandlerDefinition handler = HandlerDefinition.of(method, elements);
+            if (handler == null) {
+                continue;
+            }
+            if (!validate(handler, handlers)) {
+                valid = false;
+                continue;
+            }
+            handlers.add(handler);
+        }
+        if (!valid) {
+            return;
+        }
+
+        // the generated class has to see the service
+        if (service.getNestingKind() == NestingKind.ANONYMOUS
+                || service.getNestingKind() == NestingKind.LOCAL) {
+            return;
+        }
+        for (Element e = service; e.getKind() != ElementKind.PACKAGE; e = e.getEnclosingElement()) {
+            if (e.getModifiers().contains(Modifier.PRIVATE)) {
+                note(service, "dispatcher is not generated for a private class, reflection is used");
+                return;
+            }
+        }
+
+        try {
+            writeDispatcher(service, handlers);
+        } catch (IOException e) {
+            error(service, "failed to generate dispatcher: " + e.getMessage());
+        }
+    }
+
+    private boolean validate(HandlerDefinition handler, List<HandlerDefinition> others) {
+        ExecutableElement method = handler.method;
+        if (handler.isRead() && handler.isWrite()) {
+            error(method, "a method can't have both @OnRead and @OnWrite");
+            return false;
+        }
+        if (!handler.isRead() && !handler.isWrite()) {
+            warning(method, "annotations for a characteristic are ignored without @OnRead or @OnWrite");
+            return true;
+        }
+        if (!method.getModifiers().contains(Modifier.PUBLIC)) {
+            error(method, "handler method must be public");
+            return false;
+        }
+        if (method.getModifiers().contains(Modifier.STATIC)) {
+            error(method, "handler method must not be static");
+            return false;
+        }
+        List<? extends VariableElement> params = method.getParameters();
+        if (handler.isBatched()) {
+            if (!handler.isWrite()) {
+                error(method, "@Batch is only available with @OnWrite");
+                return false;
+            }
+            if (params.size() != 1 || !isType(params.get(0).asType(), PACKAGE + ".WriteBatch")) {
+                error(method, "batch handler method must take (WriteBatch)");
+                return false;
+            }
+            if (handler.batchSize <= 0 || handler.batchMaxDelayMillis < 0) {
+                error(method, "@Batch needs size greater than 0 and maxDelayMillis not less than 0");
+                return false;
+            }
+        }
+        if (!handler.isBatched()) {
+            String requestType = handler.isRead() ? PACKAGE + ".ReadRequest" : PACKAGE + ".WriteRequest";
+            String responseType = handler.isRead() ? PACKAGE + ".ReadResponse" : PACKAGE + ".WriteResponse";
+            if (params.size() != 2
+                    || !isType(params.get(0).asType(), requestType)
+                    || !isType(params.get(1).asType(), responseType)) {
+                error(method, "handler method must take (" + simpleName(requestType) + ", " + simpleName(responseType) + ")");
+                return false;
+            }
+        }
+        try {
+            UUID.fromString(handler.uuid);
+        } catch (IllegalArgumentException e) {
+            error(method, "invalid characteristic UUID: " + handler.uuid);
+            return false;
+        }
+        if (handler.isRead() && handler.responseNeeded != null) {
+            warning(method, "@ResponseNeeded is ignored for @OnRead");
+        }
+        if (handler.isWrite() && handler.notifiable != null) {
+            warning(method, "@Notifiable is ignored for @OnWrite, put it on the @OnRead method");
+        }
+        if (handler.readCacheMaxAgeMillis != null) {
+            if (handler.isWrite()) {
+                warning(method, "@ReadCache is ignored for @OnWrite, put it on the @OnRead method");
+            } else if (handler.readCacheMaxAgeMillis <= 0) {
+                error(method, "@ReadCache needs maxAgeMillis greater than 0");
+                return false;
+            }
+        }
+        if (handler.maxNotifyRate != null) {
+            if (handler.isWrite()) {
+                warning(method, "@MaxNotifyRate is ignored for @OnWrite, put it on the @OnRead method");
+            } else if (handler.maxNotifyRate <= 0) {
+                error(method, "@MaxNotifyRate must be greater than 0");
+                return false;
+            }
+        }
+        for (HandlerDefinition other : others) {
+            if (other.isRead() == handler.isRead()
+                    && UUID.fromString(other.uuid).equals(UUID.fromString(handler.uuid))) {
+                error(method, "characteristic " + handler.uuid + " already has a handler: " + other.method.getSimpleName());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isType(TypeMirror type, String name) {
+        TypeElement element = elements.getTypeElement(name);
+        return element != null && types.isSameType(type, element.asType());
+    }
+
+    private void writeDispatcher(TypeElement service, List<HandlerDefinition> handlers) throws IOException {
+        PackageElement pkg = elements.getPackageOf(service);
+        String packageName = pkg.isUnnamed() ? "" : pkg.getQualifiedName().toString();
+        String binaryName = elements.getBinaryName(service).toString();
+        String className = binaryName.substring(packageName.isEmpty() ? 0 : packageName.length() + 1) + SUFFIX;
+        String serviceName = types.erasure(service.asType()).toString();
+
+        JavaFileObject file = filer.createSourceFile(
+                (packageName.isEmpty() ? "" : packageName + ".") + className, service);
+        Writer w = file.openWriter();
+        try {
+            if (!packageName.isEmpty()) {
+                w.write("package " + packageName + ";\n\n");
+            }
+            w.write("import " + PACKAGE + ".BatchWriteHandler;\n");
+            w.write("import " + PACKAGE + ".MouthPieceDispatcher;\n");
+            w.write("import " + PACKAGE + ".ReadHandler;\n");
+            w.write("import " + PACKAGE + ".ReadRequest;\n");
+            w.write("import " + PACKAGE + ".ReadResponse;\n");
+            w.write("import " + PACKAGE + ".WriteBatch;\n");
+            w.write("import " + PACKAGE + ".WriteHandler;\n");
+            w.write("import " + PACKAGE + ".WriteRequest;\n");
+            w.write("import " + PACKAGE + ".WriteResponse;\n\n");
+            w.write("/**\n * Generated by " + MouthPieceProcessor.class.getName() + ", don't edit.\n */\n");
+            w.write("public final class " + className + " implements MouthPieceDispatcher<" + serviceName + "> {\n\n");
+            w.write("    @Override\n");
+            w.write("    public void register(final " + serviceName + " service, MouthPieceDispatcher.Registry registry) {\n");
+            for (HandlerDefinition handler : handlers) {
+                if (handler.isRead()) {
+                    writeReadHandler(w, handler);
+                } else if (handler.isWrite()) {
+                    writeWriteHandler(w, handler);
+                }
+            }
+            w.write("    }\n");
+            w.write("}\n");
+        } finally {
+            w.close();
+        }
+    }
+
+    private void writeReadHandler(Writer w, HandlerDefinition handler) throws IOException {
+        String uuid = quote(handler.uuid);
+        w.write("        registry.addReadHandler(" + uuid + ", new ReadHandler() {\n");
+        w.write("            @Override\n");
+        w.write("            public void onRead(ReadRequest req, ReadResponse res) {\n");
+        w.write("                service." + handler.method.getSimpleName() + "(req, res);\n");
+        w.write("            }\n");
+        w.write("        });\n");
+        if (handler.notifiable != null) {
+            w.write("        registry.setNotifiable(" + uuid + ", " + handler.notifiable + ");\n");
+            if (handler.indicatable) {
+                w.write("        registry.setIndicatable(" + uuid + ", true);\n");
+            }
+            if (handler.alwaysNotify) {
+                w.write("        registry.setAlwaysNotify(" + uuid + ", true);\n");
+            }
+            if (handler.framedNotification) {
+                w.write("        registry.setFramedNotification(" + uuid + ", true);\n");
+            }
+        }
+        if (handler.readCacheMaxAgeMillis != null) {
+            w.write("        registry.setReadCache(" + uuid + ", " + handler.readCacheMaxAgeMillis
+                    + ", " + handler.readCacheInvalidateOnUpdate + ");\n");
+        }
+        if (handler.maxNotifyRate != null) {
+            w.write("        registry.setMaxNotifyRate(" + uuid + ", " + handler.maxNotifyRate + ");\n");
+        }
+    }
+
+    private void writeWriteHandler(Writer w, HandlerDefinition handler) throws IOException {
+        String uuid = quote(handler.uuid);
+        if (handler.isBatched()) {
+            w.write("        registry.addBatchWriteHandler(" + uuid + ", new BatchWriteHandler() {\n");
+            w.write("            @Override\n");
+            w.write("            public void onWrite(WriteBatch batch) {\n");
+            w.write("                service." + handler.method.getSimpleName() + "(batch);\n");
+            w.write("            }\n");
+            w.write("        }, " + handler.batchSize + ", " + handler.batchMaxDelayMillis + ");\n");
+            if (handler.responseNeeded != null) {
+                w.write("        registry.setResponseNeeded(" + uuid + ", " + handler.responseNeeded + ");\n");
+            }
+            return;
+        }
+        w.write("        registry.addWriteHandler(" + uuid + ", new WriteHandler() {\n");
+        w.write("            @Override\n");
+        w.write("            public void onWrite(WriteRequest req, WriteResponse res) {\n");
+        w.write("                service." + handler.method.getSimpleName() + "(req, res);\n");
+        w.write("            }\n");
+        w.write("        });\n");
+        if (handler.responseNeeded != null) {
+            w.write("        registry.setResponseNeeded(" + uuid + ", " + handler.responseNeeded + ");\n");
+        }
+    }
+
+    private static String quote(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    private static String simpleName(String qualifiedName) {
+        return qualifiedName.substring(qualifiedName.lastIndexOf('.') + 1);
+    }
+
+    private void error(Element e, String message) {
+        messager.printMessage(Diagnostic.Kind.ERROR, message, e);
+    }
+
+    private void warning(Element e, String message) {
+        messager.printMessage(Diagnostic.Kind.WARNING, message, e);
+    }
+
+    private void note(Element e, String message) {
+        messager.printMessage(Diagnostic.Kind.NOTE, message, e);
+    }
+
+    /**
+     * The mouthpiece annotations found on one method.
+     */
+    static class HandlerDefinition {
+
+        final ExecutableElement method;
+        String uuid;
+        Boolean notifiable;
+        boolean indicatable;
+        boolean alwaysNotify;
+        boolean framedNotification;
+        Integer maxNotifyRate;
+        Integer batchSize;
+        Integer readCacheMaxAgeMillis;
+        boolean readCacheInvalidateOnUpdate;
+        int batchMaxDelayMillis;
+        Boolean responseNeeded;
+        private boolean read;
+        private boolean write;
+
+        private HandlerDefinition(ExecutableElement method) {
+            this.method = method;
+        }
+
+        boolean isRead() {
+            return read;
+        }
+
+        boolean isWrite() {
+            return write;
+        }
+
+        boolean isBatched() {
+            return batchSize != null;
+        }
+
+        static HandlerDefinition of(ExecutableElement method, Elements elements) {
+            HandlerDefinition handler = null;
+            for (AnnotationMirror mirror : method.getAnnotationMirrors()) {
+                String name = ((TypeElement)mirror.getAnnotationType().asElement()).getQualifiedName().toString();
+                if (!name.startsWith(ANNOTATION_PACKAGE + ".")) {
+                    continue;
+                }
+                Map<String, Object> values = valuesOf(mirror, elements);
+                handler = (handler == null) ? new HandlerDefinition(method) : handler;
+                if (ON_READ.equals(name)) {
+                    handler.read = true;
+                    handler.uuid = (String)values.get("value");
+                } else if (ON_WRITE.equals(name)) {
+                    handler.write = true;
+                    handler.uuid = (String)values.get("value");
+                } else if (NOTIFIABLE.equals(name)) {
+                    handler.notifiable = (Boolean)values.get("value");
+                    handler.indicatable = (Boolean)values.get("indicate");
+                    handler.alwaysNotify = (Boolean)values.get("always");
+                    handler.framedNotification = (Boolean)values.get("framed");
+                } else if (MAX_NOTIFY_RATE.equals(name)) {
+                    handler.maxNotifyRate = (Integer)values.get("value");
+                } else if (READ_CACHE.equals(name)) {
+                    handler.readCacheMaxAgeMillis = (Integer)values.get("maxAgeMillis");
+                    handler.readCacheInvalidateOnUpdate = (Boolean)values.get("invalidateOnUpdate");
+                } else if (BATCH.equals(name)) {
+                    handler.batchSize = (Integer)values.get("size");
+                    handler.batchMaxDelayMillis = (Integer)values.get("maxDelayMillis");
+                } else if (RESPONSE_NEEDED.equals(name)) {
+                    handler.responseNeeded = (Boolean)values.get("value");
+                }
+            }
+            return handler;
+        }
+
+        /**
+         * Values of the annotation by name, including the defaults.
+         */
+        private static Map<String, Object> valuesOf(AnnotationMirror mirror, Elements elements) {
+            Map<String, Object> values = new HashMap<String, Object>();
+            for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> e
+                    : elements.getElementValuesWithDefaults(mirror).entrySet()) {
+                values.put(e.getKey().getSimpleName().toString(), e.getValue().getValue());
+            }
+            return values;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+* Copyright 2015 Lyo Kato (lyo.kato@gmail.com)
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package mouthpiece.central;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Finds target service UUIDs in raw advertisement bytes.
+ *
+ * Targets are kept as pairs of longs, and the AD structures of the record
+ * are walked in place, so matching a scan result allocates nothing.
+ * 16-bit and 32-bit UUIDs are expanded on the Bluetooth base UUID
+ * (0000xxxx-0000-1000-8000-00805F9B34FB).
+ */
+class AdvertisementMatcher {
+
+    private static final int AD_TYPE_UUID16_INCOMPLETE  = 0x02;
+    private static final int AD_TYPE_UUID16_COMPLETE    = 0x03;
+    private static final int AD_TYPE_UUID32_INCOMPLETE  = 0x04;
+    private static final int AD_TYPE_UUID32_COMPLETE    = 0x05;
+    private static final int AD_TYPE_UUID128_INCOMPLETE = 0x06;
+    private static final int AD_TYPE_UUID128_COMPLETE   = 0x07;
+
+    private static final long BASE_UUID_MSB = 0x0000000000001000L;
+    private static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+
+    private final long[] msbs;
+    private final long[] lsbs;
+
+    AdvertisementMatcher(List<UUID> targets) {
+        msbs = new long[targets.size()];
+        lsbs = new long[targets.size()];
+        for (int i = 0; i < targets.size(); i++) {
+            msbs[i] = targets.get(i).getMostSignificantBits();
+            lsbs[i] = targets.get(i).getLeastSignificantBits();
+        }
+    }
+
+    /**
+     * Returns the index of the first target found in the record, or -1.
+     */
+    int match(byte[] record) {
+        if (record == null) {
+            return -1;
+        }
+        int pos = 0;
+        while (pos < record.length) {
+            int len = record[pos] & 0xFF;
+            if (len == 0 || pos + len >= record.length) {
+                break;
+            }
+            int type = record[pos + 1] & 0xFF;
+            int start = pos + 2;
+            int end = pos + 1 + len;
+            int found = -1;
+            switch (type) {
+                case AD_TYPE_UUID16_INCOMPLETE:
+                case AD_TYPE_UUID16_COMPLETE:
+                    for (int i = start; i + 2 <= end && found < 0; i += 2) {
+                        long short16 = (record[i] & 0xFF) | ((record[i + 1] & 0xFF) << 8);
+                        found = find((short16 << 32) | BASE_UUID_MSB, BASE_UUID_LSB);
+                    }
+                    break;
+                case AD_TYPE_UUID32_INCOMPLETE:
+                case AD_TYPE_UUID32_COMPLETE:
+                    for (int i = start; i + 4 <= end && found < 0; i += 4) {
+                        long short32 = readLittleEndian(record, i, 4);
+                        found = find((short32 << 32) | BASE_UUID_MSB, BASE_UUID_LSB);
+                    }
+                    break;
+                case AD_TYPE_UUID128_INCOMPLETE:
+                case AD_TYPE_UUID128_COMPLETE:
+                    for (int i = start; i + 16 <= end && found < 0; i += 16) {
+                        found = find(readLittleEndian(record, i + 8, 8), readLittleEndian(record, i, 8));
+                    }
+                    break;
+                default:
+                    break;
+            }
+            if (found >= 0) {
+                return found;
+            }
+            pos = end;
+        }
+        return -1;
+    }
+
+    private int find(long msb, long lsb) {
+        for (int i = 0; i < msbs.length; i++) {
+            if (msbs[i] == msb && lsbs[i] == lsb) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static long readLittleEndian(byte[] bytes, int offset, int length) {
+        long value = 0;
+        for (int i = length - 1; i >= 0; i--) {
+            value = (value << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,53 @@
+/*
+* Copyright 2015 Lyo Kato (lyo.kato@gmail.com)
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package mouthpiece.central;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with jitter.
+ *
+ * The n-th retry waits for a random time between half and whole of
+ * min(maxDelay, baseDelay * 2^n), so that centrals losing their
+ * peripherals at the same moment don't retry in lockstep.
+ */
+class Backoff {
+
+    private int baseDelayMillis;
+    private int maxDelayMillis;
+    private Random random;
+
+    Backoff(int baseDelayMillis, int maxDelayMillis) {
+        this(baseDelayMillis, maxDelayMillis, new Random());
+    }
+
+    Backoff(int baseDelayMillis, int maxDelayMillis, Random random) {
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.random = random;
+    }
+
+    long delayMillis(int retry) {
+        long delay = baseDelayMillis;
+        for (int i = 0; i < retry && delay < maxDelayMillis; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, maxDelayMillis);
+        long half = delay / 2;
+        return half + (long)(random.nextDouble() * (delay - half));
+    }
+}
@@ -0,0 +1,68 @@
+/*
+* Copyright 2015 Lyo Kato (lyo.kato@gmail.com)
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package mouthpiece.central;
+
+import android.app.Activity;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothManager;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+
+/**
+ * Gets the adapter of a central, asking the user to turn Bluetooth on when it's off.
+ */
+class BluetoothSetup {
+
+    private int requestCode;
+    private BluetoothAdapter adapter;
+
+    BluetoothSetup(int requestCode) {
+        this.requestCode = requestCode;
+    }
+
+    static boolean hasFeature(Activity activity) {
+        return activity.getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE);
+    }
+
+    /**
+     * Returns true when the adapter is ready. Otherwise the user is asked
+     * to turn it on, and onActivityResult tells the answer.
+     */
+    boolean initialize(Activity activity) {
+        BluetoothManager manager = (BluetoothManager)activity.getSystemService(Context.BLUETOOTH_SERVICE);
+        adapter = manager.getAdapter();
+        if (adapter == null || !adapter.isEnabled()) {
+            Intent i = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
+            activity.startActivityForResult(i, requestCode);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns true when the result is for this setup and the adapter became ready.
+     */
+    boolean onActivityResult(int requestCode) {
+        return (requestCode == this.requestCode && adapter != null && adapter.isEnabled());
+    }
+
+    BluetoothAdapter getAdapter() {
+        return adapter;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+* Copyright 2015 Lyo Kato (lyo.kato@gmail.com)
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package mouthpiece.central;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import mouthpiece.utils.Clock;
+
+/**
+ * Collects the devices matched during a selection window and picks
+ * the one with the strongest smoothed RSSI.
+ *
+ * Smoothed RSSI of every device is kept in a cache for ttlMillis after it
+ * was last seen. Cached devices join the next window from its beginning,
+ * so a repeated scan doesn't need to learn the neighborhood again.
+ */
+class CandidateSelector {
+
+    static class Candidate {
+        final BluetoothDevice device;
+        String serviceUUID;
+        double smoothedRssi;
+        long lastSeenAt;
+
+        Candidate(BluetoothDevice device, String serviceUUID, int rssi, long now) {
+            this.device = device;
+            this.serviceUUID = serviceUUID;
+            this.smoothedRssi = rssi;
+            this.lastSeenAt = now;
+        }
+    }
+
+    // weight of a new sample in the exponential moving average
+    private static final double SMOOTHING_FACTOR = 0.3;
+
+    private Clock clock;
+    private long ttlMillis;
+
+    // address -> candidate
+    private Map<String, Candidate> cache = new HashMap<String, Candidate>();
+    private List<Candidate> window = new ArrayList<Candidate>();
+
+    CandidateSelector(Clock clock, long ttlMillis) {
+        this.clock = clock;
+        this.ttlMillis = ttlMillis;
+    }
+
+    void setTtlMillis(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Starts a new window, seeded with the devices seen within ttlMillis.
+     * Returns true when the window already has candidates.
+     */
+    boolean beginWindow() {
+        long now = clock.uptimeMillis();
+        window.clear();
+        Iterator<Candidate> it = cache.values().iterator();
+        while (it.hasNext()) {
+            Candidate c = it.next();
+            if (now - c.lastSeenAt > ttlMillis) {
+                it.remove();
+            } else {
+                window.add(c);
+            }
+        }
+        return !window.isEmpty();
+    }
+
+    void onSeen(BluetoothDevice device, String serviceUUID, int rssi) {
+        long now = clock.uptimeMillis();
+        String address = device.getAddress();
+        Candidate c = cache.get(address);
+        if (c == null || now - c.lastSeenAt > ttlMillis) {
+            c = new Candidate(device, serviceUUID, rssi, now);
+            cache.put(address, c);
+        } else {
+            c.smoothedRssi += SMOOTHING_FACTOR * (rssi - c.smoothedRssi);
+            c.serviceUUID = serviceUUID;
+            c.lastSeenAt = now;
+        }
+        if (!window.contains(c)) {
+            window.add(c);
+        }
+    }
+
+    /**
+     * Returns the strongest candidate of the window accepted by the filter, or null.
+     */
+    Candidate selectBest(Scanner.CandidateFilter filter) {
+        Candidate best = null;
+        for (Candidate c : window) {
+            if (filter != null && !filter.accept(c.device, (int)Math.round(c.smoothedRssi))) {
+                continue;
+            }
+            if (best == null || c.smoothedRssi > best.smoothedRssi) {
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    void forget(String address) {
+        Candidate c = cache.remove(address);
+        if (c != null) {
+            window.remove(c);
+        }
+    }
+}
@@ -5,11 +5,18 @@ import android.bluetooth.BluetoothGattCharacteristic;
 public class Characteristic {
 
     private BluetoothGattCharacteristic raw;
+    // set when the value was put together from fragments
+    private byte[] value;
 
     public Characteristic(BluetoothGattCharacteristic raw) {
         this.raw = raw;
     }
 
+    Characteristic(BluetoothGattCharacteristic raw, byte[] value) {
+        this.raw = raw;
+        this.value = value;
+    }
+
     public String getServiceUuid() {
         return raw.getService().getUuid().toString();
     }
@@ -19,10 +26,14 @@ public class Characteristic {
     }
 
     public byte[] getValue() {
-        return raw.getValue();
+        return (value != null) ? value : raw.getValue();
     }
 
     public int getIntValue() {
+        if (value != null) {
+            return (value.length < 4) ? 0 : ((value[0] & 0xFF) | ((value[1] & 0xFF) << 8)
+                    | ((value[2] & 0xFF) << 16) | ((value[3] & 0xFF) << 24));
+        }
         return raw.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT32, 0);
     }
 
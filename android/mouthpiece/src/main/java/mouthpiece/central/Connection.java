@@ -16,6 +16,7 @@
 
 package mouthpiece.central;
 
+import android.annotation.TargetApi;
 import android.app.Activity;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
@@ -24,8 +25,13 @@ import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothProfile;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -34,6 +40,7 @@ import java.util.Queue;
 import java.util.UUID;
 
 import mouthpiece.central.exception.InvalidStateException;
+import mouthpiece.utils.Fragmenter;
 
 public class Connection {
 
@@ -48,15 +55,35 @@ public class Connection {
     public static final int REASON_NORMAL               = 0;
     public static final int REASON_REMOTE               = 1;
     public static final int REASON_CONDITION_MISMATCHED = 2;
+    public static final int REASON_CONNECTION_FAILED    = 3;
 
     private static final String CONFIG_UUID = "00002902-0000-1000-8000-00805f9b34fb";
 
+    public static final int DEFAULT_MAX_QUEUED_OPERATIONS = 64;
+    // same as the stack's own GATT timeout, so slow but valid responses are not cut off
+    public static final int DEFAULT_OPERATION_TIMEOUT_MILLIS = 30000;
+
+    // GATT callbacks answering an operation
+    private static final int CALLBACK_READ             = 0;
+    private static final int CALLBACK_WRITE            = 1;
+    private static final int CALLBACK_MTU              = 2;
+    private static final int CALLBACK_DESCRIPTOR_WRITE = 3;
+
+    public static final int DEFAULT_MTU = 23;
+    // opcode(1) + attribute handle(2)
+    private static final int ATT_HEADER_SIZE = 3;
+
     public interface Listener {
         void onCharacteristicChanged(Characteristic characteristic);
+        // a read/write request was passed to the stack, its result comes next
+        void onCharacteristicReadStarted(Characteristic characteristic);
+        void onCharacteristicWriteStarted(Characteristic characteristic);
         void onCharacteristicRead(boolean success, Characteristic characteristic);
+        // only for write(), results of send() are not reported
         void onCharacteristicWrite(boolean success, Characteristic characteristic);
         void onConnected();
         void onDisconnected(int reason, String errorMessage);
+        void onOperationQueueAvailable();
     }
 
     private Map<String, BluetoothGattCharacteristic> observableCharacteristicHolder;
@@ -70,11 +97,26 @@ public class Connection {
     private BluetoothGatt bluetoothGatt;
 
     private int state = STATE_READY;
+    private volatile int mtu = DEFAULT_MTU;
     private int errorReason = 2;
     private String errorMessage = "";
 
-    private boolean initialInteractionDone = false;
-    private Queue<BluetoothGattDescriptor> initialDescriptorWriteQueue;
+    // Android accepts only one outstanding GATT operation per connection,
+    // so every read/write goes through this queue and the next one is
+    // started from the completion callback of the previous one.
+    private final Object operationLock = new Object();
+    private Queue<Operation> operationQueue;
+    private Operation currentOperation;
+    private int maxQueuedOperations = DEFAULT_MAX_QUEUED_OPERATIONS;
+    private int operationTimeoutMillis = DEFAULT_OPERATION_TIMEOUT_MILLIS;
+    // fails the current operation when its callback never comes
+    private Runnable operationTimeoutChecker;
+    private boolean operationQueueWasFull = false;
+    private List<SendStream> activeStreams;
+    // characteristic uuid -> fragments of the notification being received
+    private volatile Map<String, Fragmenter.Reassembler> notificationReassemblers;
+
+    private Handler handler = new Handler(Looper.getMainLooper());
 
     public Connection(Activity activity, Destination destination, Listener listener) {
         this.activity = activity;
@@ -83,13 +125,46 @@ public class Connection {
         clear();
     }
 
+    public void setMaxQueuedOperations(int max) {
+        this.maxQueuedOperations = max;
+    }
+
+    /**
+     * How long an operation waits for its GATT callback. When it doesn't come,
+     * the operation is reported as failed, but the next one waits until the late
+     * callback arrives, as the stack is still busy with it. When nothing comes
+     * for another period, the link is closed as lost.
+     */
+    public void setOperationTimeoutMillis(int timeoutMillis) {
+        this.operationTimeoutMillis = timeoutMillis;
+    }
+
     private void clear() {
+        List<SendStream> streams = null;
+        synchronized (operationLock) {
+            streams = this.activeStreams;
+            this.activeStreams = new ArrayList<SendStream>();
+        }
+        if (streams != null) {
+            for (SendStream stream : streams) {
+                stream.finish(false);
+            }
+        }
+        this.mtu = DEFAULT_MTU;
         this.observableCharacteristicHolder = new HashMap<String, BluetoothGattCharacteristic>();
         this.writableCharacteristicHolder = new HashMap<String, BluetoothGattCharacteristic>();
         this.sendableCharacteristicHolder = new HashMap<String, BluetoothGattCharacteristic>();
         this.readableCharacteristicHolder = new HashMap<String, BluetoothGattCharacteristic>();
-        this.initialDescriptorWriteQueue = new LinkedList<BluetoothGattDescriptor>();
-        this.initialInteractionDone = false;
+        this.notificationReassemblers = new HashMap<String, Fragmenter.Reassembler>();
+        synchronized (operationLock) {
+            if (this.operationTimeoutChecker != null) {
+                handler.removeCallbacks(this.operationTimeoutChecker);
+                this.operationTimeoutChecker = null;
+            }
+            this.operationQueue = new LinkedList<Operation>();
+            this.currentOperation = null;
+            this.operationQueueWasFull = false;
+        }
     }
 
     public void connect(BluetoothDevice device) {
@@ -100,8 +175,27 @@ public class Connection {
         this.bluetoothGatt = device.connectGatt(activity.getApplicationContext(), false, mGattCallback);
     }
 
+    /**
+     * Gives up with REASON_CONNECTION_FAILED when the connection
+     * isn't ready within timeoutMillis, instead of waiting for the stack's own timeout.
+     */
+    public void connect(BluetoothDevice device, int timeoutMillis) {
+        connect(device);
+        handler.postDelayed(connectTimeoutChecker, timeoutMillis);
+    }
+
+    private final Runnable connectTimeoutChecker = new Runnable() {
+        @Override
+        public void run() {
+            if (state == STATE_CONNECTING) {
+                closeByError(REASON_CONNECTION_FAILED, "connection timeout");
+            }
+        }
+    };
+
     private void closeByError(int reason, String msg) {
         Log.d(TAG, msg);
+        handler.removeCallbacks(connectTimeoutChecker);
         state = STATE_ERROR;
         errorReason = reason;
         errorMessage = msg;
@@ -111,9 +205,14 @@ public class Connection {
         }
         activity = null;
         clear();
+        // ConnectionStateChanged listener won't be called after close()
+        if (listener != null) {
+            listener.onDisconnected(reason, msg);
+        }
     }
 
     public void close() {
+        handler.removeCallbacks(connectTimeoutChecker);
         if (state == STATE_CONNECTED || state == STATE_CONNECTING) {
             bluetoothGatt.close();
             // when mBluetoothGatt.close() called, ConnectionStateChanged listener won't be called.
@@ -131,7 +230,29 @@ public class Connection {
         return (state == STATE_CONNECTED);
     }
 
-    public void write(String uuid, byte[] value) {
+    public int getMtu() {
+        return mtu;
+    }
+
+    /**
+     * Max size of a value which can be carried by one packet.
+     */
+    public int getPayloadSize() {
+        return mtu - ATT_HEADER_SIZE;
+    }
+
+    public boolean isOperationQueueFull() {
+        synchronized (operationLock) {
+            return operationQueue.size() >= maxQueuedOperations;
+        }
+    }
+
+    /**
+     * Queues a write request.
+     * Returns false when the operation queue is full,
+     * in that case wait for Listener.onOperationQueueAvailable and retry.
+     */
+    public boolean write(String uuid, byte[] value) {
 
         if (!isConnected()) {
             throw new InvalidStateException("couldn't write value, because connection is not available.");
@@ -141,11 +262,14 @@ public class Connection {
             throw new InvalidStateException("characteristic not found: " + uuid);
         }
 
-        ch.setValue(value);
-        bluetoothGatt.writeCharacteristic(ch);
+        return enqueueWrite(ch, value, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
     }
 
-    public void send(String uuid, byte[] value) {
+    /**
+     * Queues a write-without-response request.
+     * Returns false when the operation queue is full.
+     */
+    public boolean send(String uuid, byte[] value) {
 
         if (!isConnected()) {
             throw new InvalidStateException("couldn't write value, because connection is not available.");
@@ -155,11 +279,93 @@ public class Connection {
             throw new InvalidStateException("characteristic not found: " + uuid);
         }
 
-        ch.setValue(value);
-        bluetoothGatt.writeCharacteristic(ch);
+        return enqueueWrite(ch, value, BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
     }
 
-    public void read(String uuid) {
+    private boolean enqueueWrite(BluetoothGattCharacteristic ch, byte[] value, int writeType) {
+        int payloadSize = getPayloadSize();
+        if (!destination.isFragmentationEnabled()) {
+            if (value != null && value.length > payloadSize
+                    && writeType == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE) {
+                Log.w(TAG, "value is larger than MTU, it will be truncated: " + ch.getUuid());
+            }
+            // writes with response are carried by long write procedure
+            return enqueueOperation(new CharacteristicWriteOperation(ch, value, writeType, null), false);
+        }
+        // even a short value carries the header, the peer's Reassembler expects it
+        List<byte[]> fragments = Fragmenter.split((value != null) ? value : new byte[0], payloadSize);
+        if (fragments.size() == 1) {
+            return enqueueOperation(new CharacteristicWriteOperation(ch, fragments.get(0), writeType, null), false);
+        }
+        FragmentGroup group = new FragmentGroup(fragments.size());
+        List<Operation> operations = new ArrayList<Operation>(fragments.size());
+        for (byte[] fragment : fragments) {
+            operations.add(new CharacteristicWriteOperation(ch, fragment, writeType, group));
+        }
+        return enqueueOperations(operations, false);
+    }
+
+    /**
+     * Starts to send whole the source with write-without-response.
+     * Chunks are paced by the completion callbacks, and at most 'window'
+     * chunks are waiting in the operation queue at a time.
+     */
+    public SendStream stream(String uuid, SendStream.Source source, int window,
+                             SendStream.Listener streamListener) {
+
+        if (!isConnected()) {
+            throw new InvalidStateException("couldn't write value, because connection is not available.");
+        }
+        BluetoothGattCharacteristic ch = sendableCharacteristicHolder.get(uuid);
+        if (ch == null) {
+            throw new InvalidStateException("characteristic not found: " + uuid);
+        }
+
+        SendStream stream = new SendStream(this, uuid, source, window, streamListener);
+        synchronized (operationLock) {
+            activeStreams.add(stream);
+        }
+        pumpStream(ch, stream);
+        return stream;
+    }
+
+    public SendStream stream(String uuid, SendStream.Source source,
+                             SendStream.Listener streamListener) {
+        return stream(uuid, source, SendStream.DEFAULT_WINDOW, streamListener);
+    }
+
+    private void pumpStream(BluetoothGattCharacteristic ch, SendStream stream) {
+        while (true) {
+            byte[] chunk;
+            try {
+                chunk = stream.nextChunk(getPayloadSize());
+            } catch (IOException e) {
+                Log.w(TAG, "failed to read stream source: " + e.getMessage());
+                finishStream(stream, false);
+                return;
+            }
+            if (chunk == null) {
+                break;
+            }
+            enqueueOperation(new StreamChunkOperation(ch, stream, chunk), true);
+        }
+        if (stream.isCompleted()) {
+            finishStream(stream, true);
+        }
+    }
+
+    void finishStream(SendStream stream, boolean success) {
+        synchronized (operationLock) {
+            activeStreams.remove(stream);
+        }
+        stream.finish(success);
+    }
+
+    /**
+     * Queues a read request.
+     * Returns false when the operation queue is full.
+     */
+    public boolean read(String uuid) {
         if (!isConnected()) {
             throw new InvalidStateException("couldn't write value, because connection is not available.");
         }
@@ -169,7 +375,413 @@ public class Connection {
             throw new InvalidStateException("characteristic not found: " + uuid);
         }
 
-        bluetoothGatt.readCharacteristic(ch);
+        return enqueueOperation(new CharacteristicReadOperation(ch), false);
+    }
+
+    private boolean enqueueOperation(Operation operation, boolean internal) {
+        synchronized (operationLock) {
+            if (!internal && operationQueue.size() >= maxQueuedOperations) {
+                operationQueueWasFull = true;
+                return false;
+            }
+            operationQueue.offer(operation);
+        }
+        executeNextOperation();
+        return true;
+    }
+
+    /**
+     * Queues operations which belong together, without interleaving.
+     * They are counted as one against the queue capacity.
+     */
+    private boolean enqueueOperations(List<Operation> operations, boolean internal) {
+        synchronized (operationLock) {
+            if (!internal && operationQueue.size() >= maxQueuedOperations) {
+                operationQueueWasFull = true;
+                return false;
+            }
+            operationQueue.addAll(operations);
+        }
+        executeNextOperation();
+        return true;
+    }
+
+    private void executeNextOperation() {
+        while (true) {
+            Operation operation;
+            boolean becameAvailable = false;
+            synchronized (operationLock) {
+                if (currentOperation != null || bluetoothGatt == null || state != STATE_CONNECTED) {
+                    return;
+                }
+                operation = operationQueue.poll();
+                if (operation == null) {
+                    return;
+                }
+                if (operationQueueWasFull && operationQueue.size() < maxQueuedOperations) {
+                    operationQueueWasFull = false;
+                    becameAvailable = true;
+                }
+                currentOperation = operation;
+            }
+            if (becameAvailable && listener != null) {
+                listener.onOperationQueueAvailable();
+            }
+            if (operation.isCancelled()) {
+                synchronized (operationLock) {
+                    currentOperation = null;
+                }
+                continue;
+            }
+            if (operation.execute(bluetoothGatt)) {
+                scheduleOperationTimeout(operation);
+                operation.onStarted();
+                return;
+            }
+            Log.w(TAG, "failed to start GATT operation, skip it");
+            synchronized (operationLock) {
+                currentOperation = null;
+            }
+            operation.onFinished(false);
+        }
+    }
+
+    /**
+     * Takes the current operation if the callback answers it.
+     * Returns null for a stale callback, which is dropped.
+     */
+    private Operation finishCurrentOperation(int callback, Object target) {
+        synchronized (operationLock) {
+            Operation operation = currentOperation;
+            if (operation == null || !operation.isAnsweredBy(callback, target)) {
+                Log.w(TAG, "drop the callback not answering the current operation: " + callback);
+                return null;
+            }
+            if (operationTimeoutChecker != null) {
+                handler.removeCallbacks(operationTimeoutChecker);
+                operationTimeoutChecker = null;
+            }
+            currentOperation = null;
+            return operation;
+        }
+    }
+
+    private void onOperationCallback(int callback, Object target, boolean success) {
+        Operation operation = finishCurrentOperation(callback, target);
+        if (operation == null) {
+            return;
+        }
+        executeNextOperation();
+        if (!operation.timedOut) {
+            operation.onFinished(success);
+        }
+    }
+
+    private void scheduleOperationTimeout(final Operation operation) {
+        Runnable checker = new Runnable() {
+            @Override
+            public void run() {
+                boolean linkLost = false;
+                boolean advance = false;
+                synchronized (operationLock) {
+                    if (currentOperation != operation) {
+                        return;
+                    }
+                    if (operation.timedOut) {
+                        // even the late callback didn't come
+                        operationTimeoutChecker = null;
+                        linkLost = true;
+                    } else {
+                        operation.timedOut = true;
+                        if (operation.blocksAfterTimeout()) {
+                            handler.postDelayed(this, operationTimeoutMillis);
+                        } else {
+                            currentOperation = null;
+                            operationTimeoutChecker = null;
+                            advance = true;
+                        }
+                    }
+                }
+                if (linkLost) {
+                    closeByError(REASON_REMOTE, "GATT operation timed out");
+                    return;
+                }
+                Log.w(TAG, "GATT operation timed out");
+                if (advance) {
+                    executeNextOperation();
+                }
+                operation.onFinished(false);
+            }
+        };
+        synchronized (operationLock) {
+            if (currentOperation != operation) {
+                // its callback has already come
+                return;
+            }
+            operationTimeoutChecker = checker;
+        }
+        handler.postDelayed(checker, operationTimeoutMillis);
+    }
+
+    private abstract class Operation {
+        // already reported as failed, waiting for the late callback
+        boolean timedOut = false;
+
+        abstract boolean execute(BluetoothGatt gatt);
+        abstract void onFinished(boolean success);
+        abstract boolean isAnsweredBy(int callback, Object target);
+
+        void onStarted() {
+        }
+
+        /**
+         * Whether the next operation waits for the late callback after the timeout.
+         */
+        boolean blocksAfterTimeout() {
+            return true;
+        }
+        boolean isCancelled() {
+            return false;
+        }
+    }
+
+    /**
+     * Fragments of one value; the result is reported once, after the last one.
+     */
+    private static class FragmentGroup {
+        private int remaining;
+        private boolean failed = false;
+        private boolean started = false;
+
+        FragmentGroup(int count) {
+            this.remaining = count;
+        }
+
+        /**
+         * Returns true for the first fragment passed to the stack.
+         */
+        synchronized boolean onFragmentStarted() {
+            if (started) {
+                return false;
+            }
+            started = true;
+            return true;
+        }
+
+        /**
+         * Returns true when it was the last fragment.
+         */
+        synchronized boolean onFragmentFinished(boolean success) {
+            if (!success) {
+                failed = true;
+            }
+            remaining--;
+            return remaining == 0;
+        }
+
+        synchronized boolean isSucceeded() {
+            return !failed;
+        }
+    }
+
+    private class CharacteristicWriteOperation extends Operation {
+
+        private BluetoothGattCharacteristic characteristic;
+        private byte[] value;
+        private int writeType;
+        private FragmentGroup group;
+
+        CharacteristicWriteOperation(BluetoothGattCharacteristic characteristic, byte[] value,
+                                     int writeType, FragmentGroup group) {
+            this.characteristic = characteristic;
+            this.value = value;
+            this.writeType = writeType;
+            this.group = group;
+        }
+
+        @Override
+        boolean execute(BluetoothGatt gatt) {
+            // the value is set here, not when queued, because
+            // queued writes may share the same characteristic object.
+            characteristic.setValue(value);
+            characteristic.setWriteType(writeType);
+            return gatt.writeCharacteristic(characteristic);
+        }
+
+        @Override
+        boolean isAnsweredBy(int callback, Object target) {
+            return callback == CALLBACK_WRITE && target == characteristic;
+        }
+
+        private boolean isReported() {
+            // a send is not tracked, so that its result isn't taken for a write's
+            return writeType != BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
+        }
+
+        @Override
+        void onStarted() {
+            if (group != null && !group.onFragmentStarted()) {
+                return;
+            }
+            if (isReported() && listener != null) {
+                listener.onCharacteristicWriteStarted(new Characteristic(characteristic));
+            }
+        }
+
+        @Override
+        void onFinished(boolean success) {
+            if (group != null) {
+                if (!group.onFragmentFinished(success)) {
+                    return;
+                }
+                success = group.isSucceeded();
+            }
+            if (isReported() && listener != null) {
+                listener.onCharacteristicWrite(success, new Characteristic(characteristic));
+            }
+        }
+    }
+
+    private class StreamChunkOperation extends Operation {
+
+        private BluetoothGattCharacteristic characteristic;
+        private SendStream stream;
+        private byte[] chunk;
+
+        StreamChunkOperation(BluetoothGattCharacteristic characteristic, SendStream stream, byte[] chunk) {
+            this.characteristic = characteristic;
+            this.stream = stream;
+            this.chunk = chunk;
+        }
+
+        @Override
+        boolean execute(BluetoothGatt gatt) {
+            characteristic.setValue(chunk);
+            characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+            return gatt.writeCharacteristic(characteristic);
+        }
+
+        @Override
+        boolean isAnsweredBy(int callback, Object target) {
+            return callback == CALLBACK_WRITE && target == characteristic;
+        }
+
+        @Override
+        boolean isCancelled() {
+            return stream.isFinished();
+        }
+
+        @Override
+        void onFinished(boolean success) {
+            if (stream.isFinished()) {
+                return;
+            }
+            if (!success) {
+                finishStream(stream, false);
+                return;
+            }
+            stream.onChunkSent(chunk.length);
+            pumpStream(characteristic, stream);
+        }
+    }
+
+    private class CharacteristicReadOperation extends Operation {
+
+        private BluetoothGattCharacteristic characteristic;
+
+        CharacteristicReadOperation(BluetoothGattCharacteristic characteristic) {
+            this.characteristic = characteristic;
+        }
+
+        @Override
+        boolean execute(BluetoothGatt gatt) {
+            return gatt.readCharacteristic(characteristic);
+        }
+
+        @Override
+        boolean isAnsweredBy(int callback, Object target) {
+            return callback == CALLBACK_READ && target == characteristic;
+        }
+
+        @Override
+        void onStarted() {
+            if (listener != null) {
+                listener.onCharacteristicReadStarted(new Characteristic(characteristic));
+            }
+        }
+
+        @Override
+        void onFinished(boolean success) {
+            if (listener != null) {
+                listener.onCharacteristicRead(success, new Characteristic(characteristic));
+            }
+        }
+    }
+
+    private class MtuRequestOperation extends Operation {
+
+        private int requestedMtu;
+
+        MtuRequestOperation(int requestedMtu) {
+            this.requestedMtu = requestedMtu;
+        }
+
+        @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+        @Override
+        boolean execute(BluetoothGatt gatt) {
+            Log.d(TAG, "request MTU: " + requestedMtu);
+            return gatt.requestMtu(requestedMtu);
+        }
+
+        @Override
+        boolean isAnsweredBy(int callback, Object target) {
+            return callback == CALLBACK_MTU;
+        }
+
+        @Override
+        boolean blocksAfterTimeout() {
+            // some stacks never call onMtuChanged, while they are ready for the next operation
+            return false;
+        }
+
+        @Override
+        void onFinished(boolean success) {
+            Log.d(TAG, "MTU negotiated: " + mtu);
+            // the connection is reported after the negotiation,
+            // so that the first writes are already split with the new MTU.
+            if (listener != null) {
+                listener.onConnected();
+            }
+        }
+    }
+
+    private class DescriptorWriteOperation extends Operation {
+
+        private BluetoothGattDescriptor descriptor;
+        private byte[] value;
+
+        DescriptorWriteOperation(BluetoothGattDescriptor descriptor, byte[] value) {
+            this.descriptor = descriptor;
+            this.value = value;
+        }
+
+        @Override
+        boolean execute(BluetoothGatt gatt) {
+            descriptor.setValue(value);
+            return gatt.writeDescriptor(descriptor);
+        }
+
+        @Override
+        boolean isAnsweredBy(int callback, Object target) {
+            return callback == CALLBACK_DESCRIPTOR_WRITE && target == descriptor;
+        }
+
+        @Override
+        void onFinished(boolean success) {
+            if (!success) {
+                Log.w(TAG, "failed to write descriptor: " + descriptor.getCharacteristic().getUuid());
+            }
+        }
     }
 
     private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
@@ -192,8 +804,16 @@ public class Connection {
                     reason = errorReason;
                     message = errorMessage;
                 } else {
+                    if (state == STATE_CONNECTING) {
+                        reason = REASON_CONNECTION_FAILED;
+                        message = "failed to connect: " + status;
+                    }
+                    handler.removeCallbacks(connectTimeoutChecker);
+                    state = STATE_CLOSING;
+                    gatt.close();
                     bluetoothGatt = null;
                     activity = null;
+                    clear();
                 }
 
                 if (listener != null) {
@@ -209,6 +829,13 @@ public class Connection {
                 BluetoothGattService service = gatt.getService(UUID.fromString(destination.getService()));
                 if (service != null) {
 
+                    /* MTU negotiation goes first, before CCCD writes queued below */
+                    boolean negotiateMtu = (destination.getMtu() > DEFAULT_MTU
+                            && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP);
+                    if (negotiateMtu) {
+                        enqueueOperation(new MtuRequestOperation(destination.getMtu()), true);
+                    }
+
                     /* check observable characteristics */
                     List<String> observableCharacteristicUUIDs = destination.getObservableCharacteristics();
                     for (String chUUID : observableCharacteristicUUIDs) {
@@ -272,23 +899,42 @@ public class Connection {
                     }
 
                     state = STATE_CONNECTED;
-                    if (listener != null) {
+                    handler.removeCallbacks(connectTimeoutChecker);
+                    if (!negotiateMtu && listener != null) {
                         listener.onConnected();
                     }
 
-                    writeNextDescriptor();
+                    executeNextOperation();
                 } else {
                     Log.w(TAG, "service not found, start to disconnect");
                     closeByError(REASON_CONDITION_MISMATCHED, "service not found:" + destination.getService());
                 }
+            } else {
+                closeByError(REASON_CONNECTION_FAILED, "service discovery failed: " + status);
             }
         }
 
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt,
                                             BluetoothGattCharacteristic characteristic) {
-            if (listener != null) {
+            if (listener == null) {
+                return;
+            }
+            if (!destination.isNotificationFramed(characteristic.getUuid())) {
                 listener.onCharacteristicChanged(new Characteristic(characteristic));
+                return;
+            }
+            // the peripheral sends the value in fragments sized to the MTU
+            Map<String, Fragmenter.Reassembler> reassemblers = notificationReassemblers;
+            String uuid = characteristic.getUuid().toString();
+            Fragmenter.Reassembler reassembler = reassemblers.get(uuid);
+            if (reassembler == null) {
+                reassembler = new Fragmenter.Reassembler();
+                reassemblers.put(uuid, reassembler);
+            }
+            byte[] value = reassembler.offer(characteristic.getValue());
+            if (value != null) {
+                listener.onCharacteristicChanged(new Characteristic(characteristic, value));
             }
         }
 
@@ -296,11 +942,7 @@ public class Connection {
         public void onCharacteristicRead(BluetoothGatt gatt,
                                          BluetoothGattCharacteristic characteristic,
                                          int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                listener.onCharacteristicRead(true, new Characteristic(characteristic));
-            } else {
-                listener.onCharacteristicRead(false, new Characteristic(characteristic));
-            }
+            onOperationCallback(CALLBACK_READ, characteristic, status == BluetoothGatt.GATT_SUCCESS);
             /*if (!initialInteractionDone) {
                 readNextCharacteristic();
             }*/
@@ -310,20 +952,22 @@ public class Connection {
         public void onCharacteristicWrite(BluetoothGatt gatt,
                                           BluetoothGattCharacteristic characteristic,
                                           int status) {
+            onOperationCallback(CALLBACK_WRITE, characteristic, status == BluetoothGatt.GATT_SUCCESS);
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                listener.onCharacteristicWrite(true, new Characteristic(characteristic));
-            } else {
-                listener.onCharacteristicWrite(false, new Characteristic(characteristic));
+                Connection.this.mtu = mtu;
             }
+            onOperationCallback(CALLBACK_MTU, null, status == BluetoothGatt.GATT_SUCCESS);
         }
 
         @Override
         public void onDescriptorWrite(BluetoothGatt gatt,
                                       BluetoothGattDescriptor descriptor,
                                       int status) {
-            if (!initialInteractionDone) {
-                writeNextDescriptor();
-            }
+            onOperationCallback(CALLBACK_DESCRIPTOR_WRITE, descriptor, status == BluetoothGatt.GATT_SUCCESS);
         }
     };
 
@@ -346,16 +990,6 @@ public class Connection {
     }
     */
 
-    private void writeNextDescriptor() {
-        BluetoothGattDescriptor d = initialDescriptorWriteQueue.poll();
-        if (d != null) {
-            bluetoothGatt.writeDescriptor(d);
-        }
-        /* else {
-            readNextCharacteristic();
-        }*/
-    }
-
     private BluetoothGattCharacteristic observeCharacteristic(BluetoothGattService service, String characteristicUUID) {
 
 
@@ -367,8 +1001,14 @@ public class Connection {
 
         int properties = ch.getProperties();
 
-        if ((properties & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != BluetoothGattCharacteristic.PROPERTY_NOTIFY) {
-            Log.w(TAG, "characteristic has no NOTIFY property:" + characteristicUUID);
+        byte[] configValue;
+        if ((properties & BluetoothGattCharacteristic.PROPERTY_NOTIFY) == BluetoothGattCharacteristic.PROPERTY_NOTIFY) {
+            configValue = BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE;
+        } else if ((properties & BluetoothGattCharacteristic.PROPERTY_INDICATE) == BluetoothGattCharacteristic.PROPERTY_INDICATE) {
+            // the stack sends the confirmations
+            configValue = BluetoothGattDescriptor.ENABLE_INDICATION_VALUE;
+        } else {
+            Log.w(TAG, "characteristic has no NOTIFY/INDICATE property:" + characteristicUUID);
             return null;
         }
 
@@ -385,8 +1025,7 @@ public class Connection {
             return null;
         }
 
-        descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-        initialDescriptorWriteQueue.offer(descriptor);
+        enqueueOperation(new DescriptorWriteOperation(descriptor, configValue), true);
         //initialCharacteristicReadQueue.offer(characteristicUUID);
         return ch;
     }
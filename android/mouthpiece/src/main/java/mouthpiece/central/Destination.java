@@ -17,7 +17,10 @@
 package mouthpiece.central;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.UUID;
 
 public class Destination {
 
@@ -27,6 +30,10 @@ public class Destination {
     private List<String> writableCharacteristics;
     private List<String> sendableCharacteristics;
     private List<String> readableCharacteristics;
+    private int mtu = 0;
+    private boolean fragmentationEnabled = false;
+    // characteristics whose notifications come in fragments
+    private Set<UUID> framedNotificationCharacteristics = new HashSet<UUID>();
 
     public Destination(String serviceUUID, List<String> observeUUIDs,
                        List<String> writeUUIDs, List<String> sendUUIDs) {
@@ -64,6 +71,30 @@ public class Destination {
         return readableCharacteristics;
     }
 
+    /**
+     * MTU to request after service discovery, 0 means no negotiation.
+     */
+    public int getMtu() {
+        return mtu;
+    }
+
+    /**
+     * Whether write/send values carry mouthpiece.utils.Fragmenter headers,
+     * split when larger than one packet. A short value is sent as one fragment.
+     */
+    public boolean isFragmentationEnabled() {
+        return fragmentationEnabled;
+    }
+
+    /**
+     * Whether notifications of the characteristic come in mouthpiece.utils.Fragmenter
+     * fragments (@Notifiable(framed=true) on the peripheral) and are put together
+     * before they are passed to the listener.
+     */
+    public boolean isNotificationFramed(UUID characteristicUuid) {
+        return framedNotificationCharacteristics.contains(characteristicUuid);
+    }
+
     public static class Builder {
 
         private String service;
@@ -72,6 +103,9 @@ public class Destination {
         private List<String> writableCharacteristics = new ArrayList<String>();
         private List<String> sendableCharacteristics = new ArrayList<String>();
         private List<String> readableCharacteristics = new ArrayList<String>();
+        private int mtu = 0;
+        private boolean fragmentationEnabled = false;
+        private Set<UUID> framedNotificationCharacteristics = new HashSet<UUID>();
 
         public Builder(String serviceUUID) {
             this.service = serviceUUID;
@@ -93,12 +127,33 @@ public class Destination {
             this.readableCharacteristics.add(uuid);
         }
 
+        public void setMtu(int mtu) {
+            this.mtu = mtu;
+        }
+
+        public void setFragmentationEnabled(boolean enabled) {
+            this.fragmentationEnabled = enabled;
+        }
+
+        /**
+         * Put notifications of this characteristic together from fragments.
+         * Other characteristics are passed as they come.
+         */
+        public void setNotificationFramingEnabled(String characteristicUuid) {
+            this.framedNotificationCharacteristics.add(UUID.fromString(characteristicUuid));
+        }
+
         public Destination build() {
-            return new Destination(this.service, 
+            Destination destination = new Destination(this.service, 
                     this.observableCharacteristics,
                     this.writableCharacteristics, 
                     this.sendableCharacteristics, 
                     this.readableCharacteristics);
+            destination.mtu = this.mtu;
+            destination.fragmentationEnabled = this.fragmentationEnabled;
+            destination.framedNotificationCharacteristics =
+                    new HashSet<UUID>(this.framedNotificationCharacteristics);
+            return destination;
         }
     }
 }
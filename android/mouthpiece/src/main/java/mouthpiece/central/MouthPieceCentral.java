@@ -16,12 +16,11 @@
 package mouthpiece.central;
 
 import android.app.Activity;
-import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothManager;
-import android.content.Context;
 import android.content.Intent;
-import android.content.pm.PackageManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
 import mouthpiece.utils.ValueTypeConverter;
@@ -29,6 +28,7 @@ import mouthpiece.utils.ValueTypeConverter;
 import java.util.HashMap;
 import java.util.Map;
 
+
 public class MouthPieceCentral {
 
     private static final String TAG = MouthPieceCentral.class.getSimpleName();
@@ -37,15 +37,25 @@ public class MouthPieceCentral {
     public static final int STATE_SCANNING  = 1;
     public static final int STATE_CONNECTED = 2;
     public static final int STATE_ERROR     = 3;
+    public static final int STATE_CONNECTING = 4;
 
     private static final int DEFAULT_SCAN_TIMEOUT_MILLIS  = 1000;
     private static final int DEFAULT_SCAN_INTERVAL_MILLIS = 1000;
+    private static final int DEFAULT_REQUEST_TIMEOUT_MILLIS = 5000;
+
+    private static final int DEFAULT_MAX_DIRECT_RECONNECT_ATTEMPTS = 3;
+    private static final int DEFAULT_RECONNECT_BASE_DELAY_MILLIS   = 200;
+    private static final int DEFAULT_RECONNECT_MAX_DELAY_MILLIS    = 3000;
+    private static final int DEFAULT_DIRECT_CONNECT_TIMEOUT_MILLIS = 5000;
 
     public interface Listener {
         public void onCharacteristicReceived(Characteristic characteristic);
         public void onStateChanged(String serviceUUID, int state);
     }
 
+    /**
+     * characteristic is null when the request timed out or the connection was lost.
+     */
     public interface ReadResultListener {
         public void onFinished(boolean result, Characteristic characteristic);
     }
@@ -54,11 +64,18 @@ public class MouthPieceCentral {
         public void onFinished(boolean result);
     }
 
+    public interface OperationQueueListener {
+        public void onAvailable();
+    }
+
+    public interface ReconnectListener {
+        public void onReconnected(String serviceUUID, long latencyMillis, ReconnectStats stats);
+    }
+
 
     private static final int REQUEST_CODE = 15873;
 
-    private BluetoothManager bluetoothManager;
-    private BluetoothAdapter bluetoothAdapter;
+    private BluetoothSetup bluetoothSetup = new BluetoothSetup(REQUEST_CODE);
     private Scanner scanner;
     private Connection connection;
 
@@ -68,19 +85,34 @@ public class MouthPieceCentral {
     private Destination destination;
     private int scanTimeoutMillis;
     private int scanIntervalMillis;
+    private ScanOptions scanOptions = new ScanOptions();
+    private Scanner.CandidateFilter candidateFilter;
 
     private boolean available = false;
 
-    private Map<String, WriteResultListener> writeResultListeners;
-    private Map<String, ReadResultListener> readResultListeners;
+    private Handler handler = new Handler(Looper.getMainLooper());
+    private RequestTracker requests;
+    private OperationQueueListener operationQueueListener;
+    private int maxQueuedOperations = Connection.DEFAULT_MAX_QUEUED_OPERATIONS;
+
+    // service UUID -> address of the device last connected for it
+    private Map<String, String> knownAddresses = new HashMap<String, String>();
+    private Backoff reconnectBackoff = new Backoff(
+            DEFAULT_RECONNECT_BASE_DELAY_MILLIS, DEFAULT_RECONNECT_MAX_DELAY_MILLIS);
+    private int maxDirectReconnectAttempts = DEFAULT_MAX_DIRECT_RECONNECT_ATTEMPTS;
+    private int directConnectTimeoutMillis = DEFAULT_DIRECT_CONNECT_TIMEOUT_MILLIS;
+    private ReconnectStats reconnectStats = new ReconnectStats();
+    private ReconnectListener reconnectListener;
+    private boolean reconnecting = false;
+    private int directReconnectAttempts = 0;
+    private long linkLostAt = 0;
 
     public MouthPieceCentral(Activity activity, Listener listener) {
         this.activity = activity;
         this.listener = listener;
         this.scanTimeoutMillis = DEFAULT_SCAN_TIMEOUT_MILLIS;
         this.scanIntervalMillis = DEFAULT_SCAN_INTERVAL_MILLIS;
-        this.writeResultListeners = new HashMap<String, WriteResultListener>();
-        this.readResultListeners = new HashMap<String, ReadResultListener>();
+        this.requests = new RequestTracker(handler, DEFAULT_REQUEST_TIMEOUT_MILLIS);
     }
 
     public MouthPieceCentral(Activity activity, Listener listener, int scanTimeoutMillis, int scanIntervalMillis) {
@@ -88,76 +120,164 @@ public class MouthPieceCentral {
         this.listener = listener;
         this.scanTimeoutMillis = scanTimeoutMillis;
         this.scanIntervalMillis = scanIntervalMillis;
-        this.writeResultListeners = new HashMap<String, WriteResultListener>();
-        this.readResultListeners = new HashMap<String, ReadResultListener>();
+        this.requests = new RequestTracker(handler, DEFAULT_REQUEST_TIMEOUT_MILLIS);
+    }
+
+    public void setOperationQueueListener(OperationQueueListener listener) {
+        this.operationQueueListener = listener;
+    }
+
+    public void setMaxQueuedOperations(int max) {
+        this.maxQueuedOperations = max;
+    }
+
+    public void setRequestTimeoutMillis(int timeoutMillis) {
+        this.requests.setTimeoutMillis(timeoutMillis);
+    }
+
+    public void setReconnectListener(ReconnectListener listener) {
+        this.reconnectListener = listener;
+    }
+
+    /**
+     * After this number of failed direct connections to the known device,
+     * falls back to scanning.
+     */
+    public void setMaxDirectReconnectAttempts(int attempts) {
+        this.maxDirectReconnectAttempts = attempts;
+    }
+
+    public void setReconnectBackoff(int baseDelayMillis, int maxDelayMillis) {
+        this.reconnectBackoff = new Backoff(baseDelayMillis, maxDelayMillis);
+    }
+
+    public void setDirectConnectTimeoutMillis(int timeoutMillis) {
+        this.directConnectTimeoutMillis = timeoutMillis;
+    }
+
+    public ReconnectStats getReconnectStats() {
+        return reconnectStats;
+    }
+
+    public void setScanMode(int mode) {
+        scanOptions.setMode(mode);
+    }
+
+    public void setScanReportDelayMillis(long delayMillis) {
+        scanOptions.setReportDelayMillis(delayMillis);
+    }
+
+    public void setScanMatchMode(int mode) {
+        scanOptions.setMatchMode(mode);
+    }
+
+    public void setScanCallbackType(int callbackType) {
+        scanOptions.setCallbackType(callbackType);
+    }
+
+    /**
+     * See Scanner#setSelectionWindowMillis
+     */
+    public void setScanSelectionWindowMillis(int windowMillis) {
+        scanOptions.setSelectionWindowMillis(windowMillis);
+    }
+
+    public void setCandidateFilter(Scanner.CandidateFilter filter) {
+        this.candidateFilter = filter;
     }
 
     public boolean hasFeature() {
-        return activity.getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE);
+        return BluetoothSetup.hasFeature(activity);
     }
 
     public void initialize() {
-        bluetoothManager = (BluetoothManager)activity.getSystemService(Context.BLUETOOTH_SERVICE);
-        bluetoothAdapter = bluetoothManager.getAdapter();
-        if (bluetoothAdapter == null || !bluetoothAdapter.isEnabled()) {
-            Intent i = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
-            activity.startActivityForResult(i, REQUEST_CODE);
-        } else {
+        if (bluetoothSetup.initialize(activity)) {
             available = true;
             initScanner();
         }
     }
 
     public void onActivityResult(int requestCode, int resultCode, Intent data) {
-        if (requestCode == REQUEST_CODE) {
-            if (bluetoothAdapter != null || bluetoothAdapter.isEnabled()) {
-                available = true;
-                initScanner();
-            }
+        if (bluetoothSetup.onActivityResult(requestCode)) {
+            available = true;
+            initScanner();
         }
     }
 
     private void initScanner() {
-        scanner = new Scanner(bluetoothAdapter, scanTimeoutMillis, scanIntervalMillis, new Scanner.Listener(){
+        scanner = new Scanner(bluetoothSetup.getAdapter(), scanTimeoutMillis, scanIntervalMillis, new Scanner.Listener(){
             @Override
-            public void onFound(BluetoothDevice device) {
-                initConnection(device);
+            public void onFound(BluetoothDevice device, String serviceUUID) {
+                initConnection(device, false);
             }
             @Override
             public void onFailure(int errorCode) {
                 // TODO what to do?
             }
         });
+        scanOptions.applyTo(scanner);
+        scanner.setCandidateFilter(new Scanner.CandidateFilter() {
+            @Override
+            public boolean accept(BluetoothDevice device, int rssi) {
+                return (candidateFilter == null || candidateFilter.accept(device, rssi));
+            }
+        });
     }
 
-    private void initConnection(BluetoothDevice device) {
-        connection = new Connection(activity, destination, new Connection.Listener() {
+    private void initConnection(final BluetoothDevice device, final boolean direct) {
+        connection = new Connection(activity, destination, new TrackedConnectionListener(requests) {
             @Override
             public void onConnected() {
+                knownAddresses.put(destination.getService(), device.getAddress());
+                reconnecting = false;
+                if (linkLostAt > 0) {
+                    long latency = SystemClock.uptimeMillis() - linkLostAt;
+                    linkLostAt = 0;
+                    reconnectStats.onReconnected(latency, directReconnectAttempts, direct);
+                    if (reconnectListener != null) {
+                        reconnectListener.onReconnected(destination.getService(), latency, reconnectStats);
+                    }
+                }
                 if (listener != null) {
                     listener.onStateChanged(destination.getService(), STATE_CONNECTED);
                 }
             }
             @Override
             public void onDisconnected(int result, String errorMessage) {
+                requests.failAll();
                 switch (result) {
                     case Connection.REASON_NORMAL:
+                        reconnecting = false;
+                        linkLostAt = 0;
                         connection = null;
                         if (listener != null) {
                             listener.onStateChanged(destination.getService(), STATE_IDLE);
                         }
                         break;
                     case Connection.REASON_CONDITION_MISMATCHED:
+                        knownAddresses.remove(destination.getService());
+                        reconnecting = false;
+                        linkLostAt = 0;
                         connection = null;
                         if (listener != null) {
                             listener.onStateChanged(destination.getService(), STATE_ERROR);
                         }
                         break;
                     case Connection.REASON_REMOTE:
-                        scanner.start(destination.getService());
                         connection = null;
-                        if (listener != null) {
-                            listener.onStateChanged(destination.getService(), STATE_SCANNING);
+                        linkLostAt = SystemClock.uptimeMillis();
+                        directReconnectAttempts = 0;
+                        scheduleReconnect();
+                        break;
+                    case Connection.REASON_CONNECTION_FAILED:
+                        connection = null;
+                        if (direct) {
+                            scheduleReconnect();
+                        } else {
+                            scanner.start(destination.getService());
+                            if (listener != null) {
+                                listener.onStateChanged(destination.getService(), STATE_SCANNING);
+                            }
                         }
                         break;
                     default:
@@ -172,44 +292,87 @@ public class MouthPieceCentral {
             }
 
             @Override
-            public void onCharacteristicWrite(boolean success, Characteristic characteristic) {
-                String uuid = characteristic.getUuid();
-                WriteResultListener resultListener = writeResultListeners.remove(uuid);
-                if (resultListener != null) {
-                    resultListener.onFinished(success);
+            public void onOperationQueueAvailable() {
+                if (operationQueueListener != null) {
+                    operationQueueListener.onAvailable();
                 }
             }
+        });
+        connection.setMaxQueuedOperations(maxQueuedOperations);
+        if (direct) {
+            connection.connect(device, directConnectTimeoutMillis);
+        } else {
+            connection.connect(device);
+        }
+    }
 
-            @Override
-            public void onCharacteristicRead(boolean success, Characteristic characteristic) {
-                String uuid = characteristic.getUuid();
-                ReadResultListener resultListener = readResultListeners.remove(uuid);
-                if (resultListener != null) {
-                    resultListener.onFinished(success, characteristic);
-                }
+    /**
+     * Tries direct connection to the device known for the destination,
+     * and falls back to scanning after maxDirectReconnectAttempts failures.
+     */
+    private void scheduleReconnect() {
+        String address = knownAddresses.get(destination.getService());
+        if (address == null || directReconnectAttempts >= maxDirectReconnectAttempts) {
+            reconnecting = false;
+            if (address != null) {
+                reconnectStats.onFallbackToScan();
             }
-        });
-        connection.connect(device);
+            scanner.start(destination.getService());
+            if (listener != null) {
+                listener.onStateChanged(destination.getService(), STATE_SCANNING);
+            }
+            return;
+        }
+        reconnecting = true;
+        long delay = (directReconnectAttempts == 0) ? 0 : reconnectBackoff.delayMillis(directReconnectAttempts - 1);
+        directReconnectAttempts++;
+        handler.postDelayed(directReconnectTask, delay);
+        if (listener != null) {
+            listener.onStateChanged(destination.getService(), STATE_CONNECTING);
+        }
     }
 
-    public void write(String uuid, byte[] value, WriteResultListener listener) {
-        if (connection != null && connection.isConnected()) {
-            writeResultListeners.put(uuid, listener);
-            connection.write(uuid, value);
+    private final Runnable directReconnectTask = new Runnable() {
+        @Override
+        public void run() {
+            String address = knownAddresses.get(destination.getService());
+            if (!reconnecting || address == null || activity == null) {
+                return;
+            }
+            Log.d(TAG, "try direct connection: " + address);
+            initConnection(bluetoothSetup.getAdapter().getRemoteDevice(address), true);
         }
+    };
+
+    /**
+     * Returns false when the request couldn't be queued,
+     * because of disconnection or a full operation queue.
+     * See setOperationQueueListener to know when to retry.
+     */
+    public boolean write(String uuid, byte[] value, WriteResultListener listener) {
+        return requests.write(connection, uuid, value, listener);
     }
 
-    public void send(String uuid, byte[] value) {
+    public boolean send(String uuid, byte[] value) {
         if (connection != null && connection.isConnected()) {
-            connection.send(uuid, value);
+            return connection.send(uuid, value);
         }
+        return false;
     }
 
-    public void read(String uuid, ReadResultListener listener) {
+    /**
+     * Sends whole the source to a sendable characteristic, paced by the link.
+     * Returns null when the connection is not available.
+     */
+    public SendStream stream(String uuid, SendStream.Source source, SendStream.Listener listener) {
         if (connection != null && connection.isConnected()) {
-            readResultListeners.put(uuid, listener);
-            connection.read(uuid);
+            return connection.stream(uuid, source, listener);
         }
+        return null;
+    }
+
+    public boolean read(String uuid, ReadResultListener listener) {
+        return requests.read(connection, uuid, listener);
     }
 
     private boolean stoppedByLifeCycle = false;
@@ -219,7 +382,13 @@ public class MouthPieceCentral {
             return;
 
         if (stoppedByLifeCycle && canStart()) {
-            start(destination);
+            if (knownAddresses.containsKey(destination.getService())) {
+                linkLostAt = SystemClock.uptimeMillis();
+                directReconnectAttempts = 0;
+                scheduleReconnect();
+            } else {
+                start(destination);
+            }
         }
     }
 
@@ -239,7 +408,7 @@ public class MouthPieceCentral {
     }
 
     public boolean canStart() {
-        return (available && !(scanner.isWorking()) && !(connection != null && connection.isConnected()));
+        return (available && !reconnecting && !(scanner.isWorking()) && !(connection != null && connection.isConnected()));
     }
 
     public void start(Destination destination) {
@@ -263,12 +432,19 @@ public class MouthPieceCentral {
     public boolean stop() {
         Log.d(TAG, "stop");
         boolean stopped = false;
+        if (reconnecting) {
+            Log.d(TAG, "reconnecting, so cancel it");
+            handler.removeCallbacks(directReconnectTask);
+            reconnecting = false;
+            stopped = true;
+        }
+        linkLostAt = 0;
         if (scanner.isWorking()) {
             Log.d(TAG, "scanner is working, so stop it");
             scanner.stop();
             stopped = true;
         }
-        if (connection != null && connection.isConnected()) {
+        if (connection != null) {
             Log.d(TAG, "connection is working, so close it");
             connection.close();
             connection = null;
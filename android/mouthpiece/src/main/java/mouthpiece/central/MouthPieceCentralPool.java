@@ -0,0 +1,441 @@
+/*
+* Copyright 2015 Lyo Kato (lyo.kato@gmail.com)
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package mouthpiece.central;
+
+import android.app.Activity;
+import android.bluetooth.BluetoothDevice;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Central which keeps connections to several peripherals at once.
+ *
+ * One scanner looks for all the registered destinations, and every
+ * matched device gets its own Connection (and so its own operation queue),
+ * until the number of links reaches maxConnections.
+ * Links are identified by the device address.
+ */
+public class MouthPieceCentralPool {
+
+    private static final String TAG = MouthPieceCentralPool.class.getSimpleName();
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 7;
+
+    private static final int DEFAULT_SCAN_TIMEOUT_MILLIS  = 1000;
+    private static final int DEFAULT_SCAN_INTERVAL_MILLIS = 1000;
+    private static final int DEFAULT_REQUEST_TIMEOUT_MILLIS = 5000;
+
+    private static final int REQUEST_CODE = 15874;
+
+    public interface Listener {
+        public void onCharacteristicReceived(String address, Characteristic characteristic);
+        public void onStateChanged(String address, String serviceUUID, int state);
+    }
+
+    /**
+     * Told when the operation queue of the device has room again,
+     * after write/send/read for it returned false.
+     */
+    public interface OperationQueueListener {
+        public void onAvailable(String address);
+    }
+
+    private class Link {
+        final String address;
+        final Destination destination;
+        final RequestTracker requests;
+        Connection connection;
+
+        Link(String address, Destination destination) {
+            this.address = address;
+            this.destination = destination;
+            this.requests = new RequestTracker(handler, requestTimeoutMillis);
+        }
+    }
+
+    private BluetoothSetup bluetoothSetup = new BluetoothSetup(REQUEST_CODE);
+    private Scanner scanner;
+
+    private Activity activity;
+    private Listener listener;
+    private OperationQueueListener operationQueueListener;
+
+    private int scanTimeoutMillis;
+    private int scanIntervalMillis;
+    private ScanOptions scanOptions = new ScanOptions();
+    private Scanner.CandidateFilter candidateFilter;
+    private int requestTimeoutMillis = DEFAULT_REQUEST_TIMEOUT_MILLIS;
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private int maxQueuedOperations = Connection.DEFAULT_MAX_QUEUED_OPERATIONS;
+
+    private boolean available = false;
+    private boolean running = false;
+    private boolean stoppedByLifeCycle = false;
+
+    private Handler handler = new Handler(Looper.getMainLooper());
+
+    // service UUID -> destination
+    private Map<String, Destination> destinations = new LinkedHashMap<String, Destination>();
+    // device address -> link
+    private final Map<String, Link> links = new HashMap<String, Link>();
+    // devices which don't have what the destination requires,
+    // checked from the scan callback and changed from API calls
+    private final Set<String> mismatchedAddresses = Collections.synchronizedSet(new HashSet<String>());
+
+    public MouthPieceCentralPool(Activity activity, Listener listener) {
+        this(activity, listener, DEFAULT_SCAN_TIMEOUT_MILLIS, DEFAULT_SCAN_INTERVAL_MILLIS);
+    }
+
+    public MouthPieceCentralPool(Activity activity, Listener listener, int scanTimeoutMillis, int scanIntervalMillis) {
+        this.activity = activity;
+        this.listener = listener;
+        this.scanTimeoutMillis = scanTimeoutMillis;
+        this.scanIntervalMillis = scanIntervalMillis;
+    }
+
+    public void setMaxConnections(int max) {
+        this.maxConnections = max;
+    }
+
+    public void setOperationQueueListener(OperationQueueListener listener) {
+        this.operationQueueListener = listener;
+    }
+
+    public void setMaxQueuedOperations(int max) {
+        this.maxQueuedOperations = max;
+    }
+
+    public void setRequestTimeoutMillis(int timeoutMillis) {
+        this.requestTimeoutMillis = timeoutMillis;
+    }
+
+    public void setScanMode(int mode) {
+        scanOptions.setMode(mode);
+    }
+
+    public void setScanReportDelayMillis(long delayMillis) {
+        scanOptions.setReportDelayMillis(delayMillis);
+    }
+
+    public void setScanMatchMode(int mode) {
+        scanOptions.setMatchMode(mode);
+    }
+
+    public void setScanCallbackType(int callbackType) {
+        scanOptions.setCallbackType(callbackType);
+    }
+
+    /**
+     * See Scanner#setSelectionWindowMillis
+     */
+    public void setScanSelectionWindowMillis(int windowMillis) {
+        scanOptions.setSelectionWindowMillis(windowMillis);
+    }
+
+    public void setCandidateFilter(Scanner.CandidateFilter filter) {
+        this.candidateFilter = filter;
+    }
+
+    public boolean hasFeature() {
+        return BluetoothSetup.hasFeature(activity);
+    }
+
+    public void initialize() {
+        if (bluetoothSetup.initialize(activity)) {
+            available = true;
+            initScanner();
+        }
+    }
+
+    public void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (bluetoothSetup.onActivityResult(requestCode)) {
+            available = true;
+            initScanner();
+        }
+    }
+
+    private void initScanner() {
+        scanner = new Scanner(bluetoothSetup.getAdapter(), scanTimeoutMillis, scanIntervalMillis, new Scanner.Listener(){
+            @Override
+            public void onFound(BluetoothDevice device, String serviceUUID) {
+                handleFoundDevice(device, serviceUUID);
+            }
+            @Override
+            public void onFailure(int errorCode) {
+                Log.w(TAG, "scan failed: " + errorCode);
+            }
+        });
+        scanner.setStopOnFound(false);
+        scanOptions.applyTo(scanner);
+        scanner.setCandidateFilter(new Scanner.CandidateFilter() {
+            @Override
+            public boolean accept(BluetoothDevice device, int rssi) {
+                String address = device.getAddress();
+                if (mismatchedAddresses.contains(address)) {
+                    return false;
+                }
+                synchronized (links) {
+                    if (links.containsKey(address)) {
+                        return false;
+                    }
+                }
+                return (candidateFilter == null || candidateFilter.accept(device, rssi));
+            }
+        });
+    }
+
+    public void addDestination(Destination destination) {
+        destinations.put(destination.getService(), destination);
+        if (running) {
+            updateScanning();
+        }
+    }
+
+    public void removeDestination(String serviceUUID) {
+        destinations.remove(serviceUUID);
+        List<Link> removed = new ArrayList<Link>();
+        synchronized (links) {
+            for (Link link : links.values()) {
+                if (link.destination.getService().equals(serviceUUID)) {
+                    removed.add(link);
+                }
+            }
+        }
+        for (Link link : removed) {
+            link.connection.close();
+        }
+        if (running) {
+            updateScanning();
+        }
+    }
+
+    public void start() {
+        if (!available) {
+            return;
+        }
+        running = true;
+        stoppedByLifeCycle = false;
+        updateScanning();
+    }
+
+    public boolean stop() {
+        boolean stopped = running;
+        running = false;
+        if (scanner != null && scanner.isWorking()) {
+            scanner.stop();
+        }
+        List<Link> closing;
+        synchronized (links) {
+            closing = new ArrayList<Link>(links.values());
+        }
+        for (Link link : closing) {
+            link.connection.close();
+            link.requests.failAll();
+        }
+        synchronized (links) {
+            links.clear();
+        }
+        mismatchedAddresses.clear();
+        return stopped;
+    }
+
+    public void resume() {
+        if (!available)
+            return;
+        if (stoppedByLifeCycle) {
+            start();
+        }
+    }
+
+    public void pause() {
+        if (!available)
+            return;
+        if (stop()) {
+            stoppedByLifeCycle = true;
+        }
+    }
+
+    public void destroy() {
+        stop();
+        activity = null;
+        available = false;
+    }
+
+    public List<String> getConnectedAddresses() {
+        List<String> addresses = new ArrayList<String>();
+        synchronized (links) {
+            for (Link link : links.values()) {
+                if (link.connection.isConnected()) {
+                    addresses.add(link.address);
+                }
+            }
+        }
+        return addresses;
+    }
+
+    public boolean isConnected(String address) {
+        Link link = findLink(address);
+        return (link != null && link.connection.isConnected());
+    }
+
+    public boolean write(String address, String uuid, byte[] value, MouthPieceCentral.WriteResultListener listener) {
+        Link link = findLink(address);
+        return (link != null && link.requests.write(link.connection, uuid, value, listener));
+    }
+
+    public boolean send(String address, String uuid, byte[] value) {
+        Link link = findLink(address);
+        if (link != null && link.connection.isConnected()) {
+            return link.connection.send(uuid, value);
+        }
+        return false;
+    }
+
+    public SendStream stream(String address, String uuid, SendStream.Source source, SendStream.Listener listener) {
+        Link link = findLink(address);
+        if (link != null && link.connection.isConnected()) {
+            return link.connection.stream(uuid, source, listener);
+        }
+        return null;
+    }
+
+    public boolean read(String address, String uuid, MouthPieceCentral.ReadResultListener listener) {
+        Link link = findLink(address);
+        return (link != null && link.requests.read(link.connection, uuid, listener));
+    }
+
+    private Link findLink(String address) {
+        synchronized (links) {
+            return links.get(address);
+        }
+    }
+
+    private int countLinks() {
+        synchronized (links) {
+            return links.size();
+        }
+    }
+
+    private void updateScanning() {
+        if (scanner == null) {
+            return;
+        }
+        if (!running || destinations.isEmpty() || countLinks() >= maxConnections) {
+            if (scanner.isWorking()) {
+                scanner.stop();
+            }
+            return;
+        }
+        scanner.start(destinations.keySet());
+        for (String serviceUUID : destinations.keySet()) {
+            if (listener != null) {
+                listener.onStateChanged(null, serviceUUID, MouthPieceCentral.STATE_SCANNING);
+            }
+        }
+    }
+
+    private void handleFoundDevice(BluetoothDevice device, String serviceUUID) {
+        if (!running) {
+            return;
+        }
+        String address = device.getAddress();
+        Destination destination = destinations.get(serviceUUID);
+        if (destination == null || mismatchedAddresses.contains(address)) {
+            return;
+        }
+        final Link link;
+        synchronized (links) {
+            if (links.containsKey(address) || links.size() >= maxConnections) {
+                return;
+            }
+            link = new Link(address, destination);
+            links.put(address, link);
+        }
+        Log.d(TAG, "connect to " + address + " for " + serviceUUID);
+        link.connection = new Connection(activity, destination, createConnectionListener(link));
+        link.connection.setMaxQueuedOperations(maxQueuedOperations);
+        if (countLinks() >= maxConnections) {
+            scanner.stop();
+        }
+        link.connection.connect(device);
+    }
+
+    private void removeLink(Link link) {
+        synchronized (links) {
+            if (links.get(link.address) == link) {
+                links.remove(link.address);
+            }
+        }
+    }
+
+    private Connection.Listener createConnectionListener(final Link link) {
+        return new TrackedConnectionListener(link.requests) {
+            @Override
+            public void onConnected() {
+                if (listener != null) {
+                    listener.onStateChanged(link.address, link.destination.getService(),
+                            MouthPieceCentral.STATE_CONNECTED);
+                }
+            }
+            @Override
+            public void onDisconnected(int reason, String errorMessage) {
+                link.requests.failAll();
+                removeLink(link);
+                final boolean mismatched = (reason == Connection.REASON_CONDITION_MISMATCHED);
+                if (listener != null) {
+                    listener.onStateChanged(link.address, link.destination.getService(),
+                            mismatched ? MouthPieceCentral.STATE_ERROR : MouthPieceCentral.STATE_IDLE);
+                }
+                // a slot became free, look for another device
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mismatched) {
+                            mismatchedAddresses.add(link.address);
+                        }
+                        if (running && !scanner.isWorking()) {
+                            updateScanning();
+                        }
+                    }
+                });
+            }
+            @Override
+            public void onCharacteristicChanged(Characteristic characteristic) {
+                if (listener != null) {
+                    listener.onCharacteristicReceived(link.address, characteristic);
+                }
+            }
+            @Override
+            public void onOperationQueueAvailable() {
+                if (operationQueueListener != null) {
+                    operationQueueListener.onAvailable(link.address);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,156 @@
+/*
+* Copyright 2015 Lyo Kato (lyo.kato@gmail.com)
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package mouthpiece.central;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+
+/**
+ * Per-characteristic FIFO of requests waiting for their GATT callback.
+ *
+ * Connection executes operations in the order they were queued,
+ * so callbacks for one characteristic come back in the same order,
+ * and the head of the queue is always the request being answered.
+ *
+ * The deadline of a request starts when its operation is passed to the stack,
+ * as time waiting in the connection's queue says nothing about the peer.
+ * A request whose deadline passed is reported as failed right away,
+ * but stays in the queue until its callback arrives,
+ * so that the following requests keep matching their own callbacks.
+ *
+ * Queues are keyed by UUID, as callers may write the UUID string
+ * in upper case while callbacks always come with lower case.
+ */
+class PendingRequests<L> {
+
+    private static final long NOT_STARTED = 0;
+
+    private static class Entry<L> {
+        final int id;
+        long deadline = NOT_STARTED;
+        L listener;
+
+        Entry(int id, L listener) {
+            this.id = id;
+            this.listener = listener;
+        }
+    }
+
+    private Map<UUID, Queue<Entry<L>>> queues = new HashMap<UUID, Queue<Entry<L>>>();
+    private int lastId = 0;
+
+    synchronized int add(String uuid, L listener) {
+        UUID key = UUID.fromString(uuid);
+        Queue<Entry<L>> queue = queues.get(key);
+        if (queue == null) {
+            queue = new LinkedList<Entry<L>>();
+            queues.put(key, queue);
+        }
+        int id = ++lastId;
+        queue.offer(new Entry<L>(id, listener));
+        return id;
+    }
+
+    /**
+     * Starts the deadline of the oldest request not started yet,
+     * which is the one the connection has just passed to the stack.
+     */
+    synchronized void start(String uuid, long deadline) {
+        Queue<Entry<L>> queue = queues.get(UUID.fromString(uuid));
+        if (queue == null)
+            return;
+        for (Entry<L> entry : queue) {
+            if (entry.deadline == NOT_STARTED) {
+                entry.deadline = deadline;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes the request which couldn't be passed to the connection.
+     */
+    synchronized void cancel(String uuid, int id) {
+        Queue<Entry<L>> queue = queues.get(UUID.fromString(uuid));
+        if (queue == null)
+            return;
+        Iterator<Entry<L>> it = queue.iterator();
+        while (it.hasNext()) {
+            if (it.next().id == id) {
+                it.remove();
+                break;
+            }
+        }
+    }
+
+    /**
+     * Takes the request answered by the callback for the characteristic.
+     * Returns null when it already expired.
+     */
+    synchronized L poll(String uuid) {
+        UUID key = UUID.fromString(uuid);
+        Queue<Entry<L>> queue = queues.get(key);
+        if (queue == null)
+            return null;
+        Entry<L> entry = queue.poll();
+        if (queue.isEmpty())
+            queues.remove(key);
+        return (entry != null) ? entry.listener : null;
+    }
+
+    /**
+     * Marks requests past their deadline as expired and returns their listeners.
+     */
+    synchronized List<L> expire(long now) {
+        List<L> expired = new ArrayList<L>();
+        for (Queue<Entry<L>> queue : queues.values()) {
+            for (Entry<L> entry : queue) {
+                if (entry.listener != null && entry.deadline != NOT_STARTED && entry.deadline <= now) {
+                    expired.add(entry.listener);
+                    entry.listener = null;
+                }
+            }
+        }
+        return expired;
+    }
+
+    synchronized boolean isEmpty() {
+        return queues.isEmpty();
+    }
+
+    /**
+     * Drops all the requests and returns listeners not answered yet.
+     */
+    synchronized List<L> clear() {
+        List<L> remaining = new ArrayList<L>();
+        for (Queue<Entry<L>> queue : queues.values()) {
+            for (Entry<L> entry : queue) {
+                if (entry.listener != null) {
+                    remaining.add(entry.listener);
+                }
+            }
+        }
+        queues.clear();
+        return remaining;
+    }
+}
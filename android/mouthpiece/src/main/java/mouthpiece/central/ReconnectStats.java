@@ -0,0 +1,80 @@
+/*
+* Copyright 2015 Lyo Kato (lyo.kato@gmail.com)
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package mouthpiece.central;
+
+/**
+ * Latency from losing a link until it is established again.
+ */
+public class ReconnectStats {
+
+    private int reconnectCount = 0;
+    private int directReconnectCount = 0;
+    private int fallbackToScanCount = 0;
+    private long lastLatencyMillis = 0;
+    private long totalLatencyMillis = 0;
+    private long maxLatencyMillis = 0;
+    private int lastAttempts = 0;
+
+    synchronized void onReconnected(long latencyMillis, int attempts, boolean direct) {
+        reconnectCount++;
+        if (direct) {
+            directReconnectCount++;
+        }
+        lastLatencyMillis = latencyMillis;
+        totalLatencyMillis += latencyMillis;
+        maxLatencyMillis = Math.max(maxLatencyMillis, latencyMillis);
+        lastAttempts = attempts;
+    }
+
+    synchronized void onFallbackToScan() {
+        fallbackToScanCount++;
+    }
+
+    public synchronized int getReconnectCount() {
+        return reconnectCount;
+    }
+
+    /**
+     * Reconnections made by direct connection to the known device, without scanning.
+     */
+    public synchronized int getDirectReconnectCount() {
+        return directReconnectCount;
+    }
+
+    public synchronized int getFallbackToScanCount() {
+        return fallbackToScanCount;
+    }
+
+    public synchronized long getLastLatencyMillis() {
+        return lastLatencyMillis;
+    }
+
+    public synchronized long getAverageLatencyMillis() {
+        return (reconnectCount == 0) ? 0 : totalLatencyMillis / reconnectCount;
+    }
+
+    public synchronized long getMaxLatencyMillis() {
+        return maxLatencyMillis;
+    }
+
+    /**
+     * Number of direct connection attempts made for the last reconnection.
+     */
+    public synchronized int getLastAttempts() {
+        return lastAttempts;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+* Copyright 2015 Lyo Kato (lyo.kato@gmail.com)
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package mouthpiece.central;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Read/write requests of one connection waiting for their results,
+ * failed when they pass the deadline or the connection is lost.
+ */
+class RequestTracker {
+
+    private PendingRequests<MouthPieceCentral.WriteResultListener> pendingWrites;
+    private PendingRequests<MouthPieceCentral.ReadResultListener> pendingReads;
+    private Handler handler;
+    private int timeoutMillis;
+
+    RequestTracker(Handler handler, int timeoutMillis) {
+        this.handler = handler;
+        this.timeoutMillis = timeoutMillis;
+        this.pendingWrites = new PendingRequests<MouthPieceCentral.WriteResultListener>();
+        this.pendingReads = new PendingRequests<MouthPieceCentral.ReadResultListener>();
+    }
+
+    void setTimeoutMillis(int timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    int addWrite(String uuid, MouthPieceCentral.WriteResultListener listener) {
+        return pendingWrites.add(uuid, listener);
+    }
+
+    int addRead(String uuid, MouthPieceCentral.ReadResultListener listener) {
+        return pendingReads.add(uuid, listener);
+    }
+
+    /**
+     * Queues the write on the connection and tracks its result.
+     * Returns false when it couldn't be queued.
+     */
+    boolean write(Connection connection, String uuid, byte[] value,
+                  MouthPieceCentral.WriteResultListener listener) {
+        if (connection == null || !connection.isConnected()) {
+            return false;
+        }
+        int requestId = addWrite(uuid, listener);
+        if (connection.write(uuid, value)) {
+            return true;
+        }
+        cancelWrite(uuid, requestId);
+        return false;
+    }
+
+    boolean read(Connection connection, String uuid, MouthPieceCentral.ReadResultListener listener) {
+        if (connection == null || !connection.isConnected()) {
+            return false;
+        }
+        int requestId = addRead(uuid, listener);
+        if (connection.read(uuid)) {
+            return true;
+        }
+        cancelRead(uuid, requestId);
+        return false;
+    }
+
+    void cancelWrite(String uuid, int requestId) {
+        pendingWrites.cancel(uuid, requestId);
+    }
+
+    void cancelRead(String uuid, int requestId) {
+        pendingReads.cancel(uuid, requestId);
+    }
+
+    /**
+     * Called when the connection passed the request to the stack.
+     */
+    void onWriteStarted(Characteristic characteristic) {
+        pendingWrites.start(characteristic.getUuid(), SystemClock.uptimeMillis() + timeoutMillis);
+        handler.postDelayed(expirationChecker, timeoutMillis);
+    }
+
+    void onReadStarted(Characteristic characteristic) {
+        pendingReads.start(characteristic.getUuid(), SystemClock.uptimeMillis() + timeoutMillis);
+        handler.postDelayed(expirationChecker, timeoutMillis);
+    }
+
+    void onWriteFinished(boolean success, Characteristic characteristic) {
+        MouthPieceCentral.WriteResultListener l = pendingWrites.poll(characteristic.getUuid());
+        if (l != null) {
+            l.onFinished(success);
+        }
+    }
+
+    void onReadFinished(boolean success, Characteristic characteristic) {
+        MouthPieceCentral.ReadResultListener l = pendingReads.poll(characteristic.getUuid());
+        if (l != null) {
+            l.onFinished(success, characteristic);
+        }
+    }
+
+    private final Runnable expirationChecker = new Runnable() {
+        @Override
+        public void run() {
+            long now = SystemClock.uptimeMillis();
+            for (MouthPieceCentral.WriteResultListener l : pendingWrites.expire(now)) {
+                l.onFinished(false);
+            }
+            for (MouthPieceCentral.ReadResultListener l : pendingReads.expire(now)) {
+                l.onFinished(false, null);
+            }
+        }
+    };
+
+    void failAll() {
+        handler.removeCallbacks(expirationChecker);
+        for (MouthPieceCentral.WriteResultListener l : pendingWrites.clear()) {
+            l.onFinished(false);
+        }
+        for (MouthPieceCentral.ReadResultListener l : pendingReads.clear()) {
+            l.onFinished(false, null);
+        }
+    }
+}
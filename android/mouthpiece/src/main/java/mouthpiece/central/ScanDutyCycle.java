@@ -0,0 +1,80 @@
+/*
+* Copyright 2015 Lyo Kato (lyo.kato@gmail.com)
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package mouthpiece.central;
+
+import mouthpiece.utils.Clock;
+
+/**
+ * Decides how long to scan and how long to rest between scans.
+ *
+ * Right after reset() (scanner started, or link lost), it scans
+ * continuously for the aggressive period, because the device is most
+ * likely to show up then. After that, scan windows of fixed length are
+ * separated by intervals which double on every window without result,
+ * from minInterval up to maxInterval.
+ */
+class ScanDutyCycle {
+
+    private Clock clock;
+    private long windowMillis;
+    private long minIntervalMillis;
+    private long maxIntervalMillis;
+    private long aggressivePeriodMillis;
+
+    private long resetAt;
+    private long intervalMillis;
+
+    ScanDutyCycle(Clock clock, long windowMillis, long minIntervalMillis,
+                  long maxIntervalMillis, long aggressivePeriodMillis) {
+        this.clock = clock;
+        this.windowMillis = windowMillis;
+        this.minIntervalMillis = minIntervalMillis;
+        this.maxIntervalMillis = Math.max(minIntervalMillis, maxIntervalMillis);
+        this.aggressivePeriodMillis = aggressivePeriodMillis;
+        reset();
+    }
+
+    void setMaxIntervalMillis(long maxIntervalMillis) {
+        this.maxIntervalMillis = Math.max(minIntervalMillis, maxIntervalMillis);
+    }
+
+    void setAggressivePeriodMillis(long aggressivePeriodMillis) {
+        this.aggressivePeriodMillis = aggressivePeriodMillis;
+    }
+
+    void reset() {
+        resetAt = clock.uptimeMillis();
+        intervalMillis = minIntervalMillis;
+    }
+
+    /**
+     * Length of the scan window starting now.
+     */
+    long nextWindowMillis() {
+        long remaining = resetAt + aggressivePeriodMillis - clock.uptimeMillis();
+        return Math.max(windowMillis, remaining);
+    }
+
+    /**
+     * Length of the rest after a window which found nothing.
+     */
+    long nextIntervalMillis() {
+        long interval = intervalMillis;
+        intervalMillis = Math.min(maxIntervalMillis, intervalMillis * 2);
+        return interval;
+    }
+}
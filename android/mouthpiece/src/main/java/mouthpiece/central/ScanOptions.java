@@ -0,0 +1,78 @@
+/*
+* Copyright 2015 Lyo Kato (lyo.kato@gmail.com)
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package mouthpiece.central;
+
+import android.bluetooth.le.ScanSettings;
+
+/**
+ * Scan settings of a central. They can be changed before the scanner
+ * is created, and are passed to it once it exists.
+ */
+class ScanOptions {
+
+    private int mode = ScanSettings.SCAN_MODE_LOW_POWER;
+    private long reportDelayMillis = 0;
+    private int matchMode = ScanSettings.MATCH_MODE_AGGRESSIVE;
+    private int callbackType = ScanSettings.CALLBACK_TYPE_ALL_MATCHES;
+    private int selectionWindowMillis = 0;
+    private Scanner scanner;
+
+    void applyTo(Scanner scanner) {
+        this.scanner = scanner;
+        scanner.setScanMode(mode);
+        scanner.setReportDelayMillis(reportDelayMillis);
+        scanner.setMatchMode(matchMode);
+        scanner.setCallbackType(callbackType);
+        scanner.setSelectionWindowMillis(selectionWindowMillis);
+    }
+
+    void setMode(int mode) {
+        this.mode = mode;
+        if (scanner != null) {
+            scanner.setScanMode(mode);
+        }
+    }
+
+    void setReportDelayMillis(long delayMillis) {
+        this.reportDelayMillis = delayMillis;
+        if (scanner != null) {
+            scanner.setReportDelayMillis(delayMillis);
+        }
+    }
+
+    void setMatchMode(int mode) {
+        this.matchMode = mode;
+        if (scanner != null) {
+            scanner.setMatchMode(mode);
+        }
+    }
+
+    void setCallbackType(int callbackType) {
+        this.callbackType = callbackType;
+        if (scanner != null) {
+            scanner.setCallbackType(callbackType);
+        }
+    }
+
+    void setSelectionWindowMillis(int windowMillis) {
+        this.selectionWindowMillis = windowMillis;
+        if (scanner != null) {
+            scanner.setSelectionWindowMillis(windowMillis);
+        }
+    }
+}
@@ -21,25 +21,33 @@ import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.le.BluetoothLeScanner;
 import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
 import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.ParcelUuid;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.UUID;
 
+import mouthpiece.utils.Clock;
+
 /**
  * Created by lyokato on 15/09/14.
  */
 public class Scanner {
 
     private static final String TAG = Scanner.class.getSimpleName();
-    private String serviceUUID;
+    private List<String> serviceUUIDs = new ArrayList<String>();
+    private List<UUID> targetUUIDs = new ArrayList<UUID>();
+    private AdvertisementMatcher matcher = new AdvertisementMatcher(targetUUIDs);
+    private boolean stopOnFound = true;
 
     private static final int STATE_READY = 0;
     private static final int STATE_SCANNING = 1;
@@ -47,91 +55,231 @@ public class Scanner {
 
     private int state = STATE_READY;
 
-    private Timer timeoutTimer;
-    private Timer intervalTimer;
-    private int timeoutMillis;
-    private int intervalMillis;
+    private static final int DEFAULT_AGGRESSIVE_PERIOD_MILLIS = 5000;
+    private static final int DEFAULT_MAX_INTERVAL_FACTOR = 8;
+
+    private ScanDutyCycle dutyCycle;
 
+    // every window and interval is scheduled on this handler with the same runnables,
+    // instead of a new Timer thread for each of them.
     private Handler handler = new Handler(Looper.getMainLooper());
 
+    private int scanMode = ScanSettings.SCAN_MODE_LOW_POWER;
+    private long reportDelayMillis = 0;
+    private int matchMode = ScanSettings.MATCH_MODE_AGGRESSIVE;
+    private int callbackType = ScanSettings.CALLBACK_TYPE_ALL_MATCHES;
+
+    private static final int DEFAULT_CANDIDATE_TTL_MILLIS = 10000;
+
+    private CandidateSelector selector;
+    private CandidateFilter candidateFilter;
+    private int selectionWindowMillis = 0;
+    private boolean selecting = false;
+
     public interface Listener {
-        void onFound(BluetoothDevice device);
+        void onFound(BluetoothDevice device, String serviceUUID);
         void onFailure(int errorCode);
     }
 
+    /**
+     * Decides if a matched device can be reported.
+     * In the selection mode, rssi is the smoothed value.
+     */
+    public interface CandidateFilter {
+        boolean accept(BluetoothDevice device, int rssi);
+    }
+
     private Listener listener;
     private BluetoothAdapter bluetoothAdapter;
     private BluetoothLeScanner bluetoothScanner;
 
     public Scanner(BluetoothAdapter adapter, int timeoutMillis, int intervalMillis, Listener listener) {
+        this(adapter, timeoutMillis, intervalMillis, listener, Clock.SYSTEM);
+    }
+
+    public Scanner(BluetoothAdapter adapter, int timeoutMillis, int intervalMillis, Listener listener, Clock clock) {
         this.bluetoothAdapter = adapter;
         this.listener = listener;
-        this.timeoutMillis = timeoutMillis;
-        this.intervalMillis = intervalMillis;
+        this.dutyCycle = new ScanDutyCycle(clock, timeoutMillis, intervalMillis,
+                intervalMillis * DEFAULT_MAX_INTERVAL_FACTOR, DEFAULT_AGGRESSIVE_PERIOD_MILLIS);
+        this.selector = new CandidateSelector(clock, DEFAULT_CANDIDATE_TTL_MILLIS);
     }
 
     public boolean isWorking() {
         return (state != STATE_READY);
     }
 
+    /**
+     * When false, scanning goes on after a match is found,
+     * and the owner decides when to stop.
+     */
+    public void setStopOnFound(boolean stopOnFound) {
+        this.stopOnFound = stopOnFound;
+    }
+
+    /**
+     * When greater than 0, matches are collected for this period after the first one,
+     * and the device with the strongest smoothed RSSI is reported.
+     * 0 reports the first match immediately (default).
+     */
+    public void setSelectionWindowMillis(int selectionWindowMillis) {
+        this.selectionWindowMillis = selectionWindowMillis;
+    }
+
+    public void setCandidateFilter(CandidateFilter filter) {
+        this.candidateFilter = filter;
+    }
+
+    /**
+     * Devices seen within this period join the next selection window from its start.
+     */
+    public void setCandidateTtlMillis(int ttlMillis) {
+        this.selector.setTtlMillis(ttlMillis);
+    }
+
+    /**
+     * Scans continuously for this period after start(),
+     * before the duty cycle begins.
+     */
+    public void setAggressivePeriodMillis(int periodMillis) {
+        this.dutyCycle.setAggressivePeriodMillis(periodMillis);
+    }
+
+    /**
+     * Upper limit of the interval between scans, which grows
+     * while nothing is found.
+     */
+    public void setMaxIntervalMillis(int maxIntervalMillis) {
+        this.dutyCycle.setMaxIntervalMillis(maxIntervalMillis);
+    }
+
+    /**
+     * One of ScanSettings.SCAN_MODE_*
+     */
+    public void setScanMode(int scanMode) {
+        this.scanMode = scanMode;
+    }
+
+    /**
+     * When greater than 0, results are delivered in batches through onBatchScanResults.
+     * Ignored if the controller doesn't support offloaded batching.
+     * Keep it shorter than the scan timeout, or batches are dropped at the interval.
+     */
+    public void setReportDelayMillis(long reportDelayMillis) {
+        this.reportDelayMillis = reportDelayMillis;
+    }
+
+    /**
+     * One of ScanSettings.MATCH_MODE_*, effective on API level 23 and later.
+     */
+    public void setMatchMode(int matchMode) {
+        this.matchMode = matchMode;
+    }
+
+    /**
+     * One of ScanSettings.CALLBACK_TYPE_*, effective on API level 23 and later.
+     */
+    public void setCallbackType(int callbackType) {
+        this.callbackType = callbackType;
+    }
+
     public void start(String serviceUUID) {
-        this.serviceUUID = serviceUUID;
+        start(Collections.singletonList(serviceUUID));
+    }
 
+    public void start(Collection<String> serviceUUIDs) {
+        this.serviceUUIDs = new ArrayList<String>(serviceUUIDs);
+        this.targetUUIDs = new ArrayList<UUID>();
+        for (String uuid : serviceUUIDs) {
+            this.targetUUIDs.add(UUID.fromString(uuid));
+        }
+        this.matcher = new AdvertisementMatcher(this.targetUUIDs);
+
+        handler.removeCallbacks(windowEndTask);
+        handler.removeCallbacks(intervalEndTask);
+        handler.removeCallbacks(selectionEndTask);
+        selecting = false;
         if (state == STATE_SCANNING) {
-            stopTimeoutTimer();
-        } else if (state == STATE_INTERVAL) {
-            stopIntervalTimer();
+            stopScanning();
         }
 
-        startScanning();
-        state = STATE_SCANNING;
-        startTimeoutTimer();
-    }
-
-    private void startTimeoutTimer() {
-        timeoutTimer = new Timer();
-        timeoutTimer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                stopScanning();
-                state = STATE_INTERVAL;
-                timeoutTimer = null;
-                Log.d(TAG, "scan interval");
-
-                intervalTimer = new Timer();
-                intervalTimer.schedule(new TimerTask() {
-                    @Override
-                    public void run() {
-                        intervalTimer = null;
-                        Log.d(TAG, "scan again");
-                        startScanning();
-                        startTimeoutTimer();
-                    }
-                }, intervalMillis);
-            }
-        }, timeoutMillis);
-    }
+        dutyCycle.reset();
+        startWindow();
 
-    private void stopTimeoutTimer() {
-        if (timeoutTimer != null) {
-            timeoutTimer.cancel();
-            timeoutTimer = null;
+        // devices seen by the last scan are ranked from the beginning
+        if (selectionWindowMillis > 0 && selector.beginWindow()) {
+            beginSelection();
         }
     }
 
-    private void stopIntervalTimer() {
-        if (intervalTimer != null) {
-            intervalTimer.cancel();
-            intervalTimer = null;
+    private void beginSelection() {
+        selecting = true;
+        handler.postDelayed(selectionEndTask, selectionWindowMillis);
+    }
+
+    private final Runnable selectionEndTask = new Runnable() {
+        @Override
+        public void run() {
+            if (!selecting) {
+                return;
+            }
+            selecting = false;
+            CandidateSelector.Candidate best = selector.selectBest(candidateFilter);
+            selector.beginWindow();
+            if (best == null) {
+                Log.d(TAG, "no acceptable candidate");
+                return;
+            }
+            Log.d(TAG, "selected candidate, rssi: " + best.smoothedRssi);
+            if (stopOnFound) {
+                stop();
+            } else {
+                // let the others win the next window
+                selector.forget(best.device.getAddress());
+            }
+            if (listener != null) {
+                listener.onFound(best.device, best.serviceUUID);
+            }
         }
+    };
+
+    private void startWindow() {
+        startScanning();
+        handler.postDelayed(windowEndTask, dutyCycle.nextWindowMillis());
     }
 
+    private final Runnable windowEndTask = new Runnable() {
+        @Override
+        public void run() {
+            if (state != STATE_SCANNING) {
+                return;
+            }
+            stopScanning();
+            state = STATE_INTERVAL;
+            long interval = dutyCycle.nextIntervalMillis();
+            Log.d(TAG, "scan interval: " + interval);
+            handler.postDelayed(intervalEndTask, interval);
+        }
+    };
+
+    private final Runnable intervalEndTask = new Runnable() {
+        @Override
+        public void run() {
+            if (state != STATE_INTERVAL) {
+                return;
+            }
+            Log.d(TAG, "scan again");
+            startWindow();
+        }
+    };
+
     public void stop() {
+        handler.removeCallbacks(windowEndTask);
+        handler.removeCallbacks(intervalEndTask);
+        handler.removeCallbacks(selectionEndTask);
+        selecting = false;
         if (state == STATE_SCANNING) {
-            stopTimeoutTimer();
             stopScanning();
-        } else if (state == STATE_INTERVAL) {
-            stopIntervalTimer();
         }
         state = STATE_READY;
     }
@@ -150,7 +298,27 @@ public class Scanner {
     private void startScanningInternally() {
         Log.d(TAG, "startScan");
         bluetoothScanner = bluetoothAdapter.getBluetoothLeScanner();
-        bluetoothScanner.startScan(mScanCallback);
+        // let the controller filter advertisements by service UUID,
+        // so the app is woken up only for the devices it looks for.
+        List<ScanFilter> filters = new ArrayList<ScanFilter>();
+        for (UUID uuid : targetUUIDs) {
+            filters.add(new ScanFilter.Builder().setServiceUuid(new ParcelUuid(uuid)).build());
+        }
+        bluetoothScanner.startScan(filters, createScanSettings(), mScanCallback);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private ScanSettings createScanSettings() {
+        ScanSettings.Builder builder = new ScanSettings.Builder();
+        builder.setScanMode(scanMode);
+        if (reportDelayMillis > 0 && bluetoothAdapter.isOffloadedScanBatchingSupported()) {
+            builder.setReportDelay(reportDelayMillis);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            builder.setMatchMode(matchMode);
+            builder.setCallbackType(callbackType);
+        }
+        return builder.build();
     }
 
     private void stopScanning() {
@@ -181,13 +349,7 @@ public class Scanner {
                 return;
             }
             for (ScanResult result : results) {
-                List<ParcelUuid> uuids = result.getScanRecord().getServiceUuids();
-                if (foundTargetService(uuids)) {
-                    Log.d(TAG, "found matched scan result");
-                    stop();
-                    if (listener != null) {
-                        listener.onFound(result.getDevice());
-                    }
+                if (handleScanResult(result) && stopOnFound) {
                     break;
                 }
             }
@@ -195,14 +357,10 @@ public class Scanner {
         @Override
         public void onScanResult(int callbackType, ScanResult result) {
             super.onScanResult(callbackType, result);
-            List<ParcelUuid> uuids = result.getScanRecord().getServiceUuids();
-            if (foundTargetService(uuids)) {
-                Log.d(TAG, "found matched scan result");
-                stop();
-                if (listener != null) {
-                    listener.onFound(result.getDevice());
-                }
+            if (state != STATE_SCANNING) {
+                return;
             }
+            handleScanResult(result);
         }
         @Override
         public void onScanFailed(int errorCode) {
@@ -216,25 +374,32 @@ public class Scanner {
         }
     };
 
-    private boolean foundTargetService(List<ParcelUuid> uuids) {
-        if (uuids == null)
+    private boolean handleScanResult(ScanResult result) {
+        if (result.getScanRecord() == null) {
             return false;
-        for(ParcelUuid uuid : uuids) {
-            if (uuid.getUuid().compareTo(UUID.fromString(serviceUUID)) == 0) {
-                return true;
-            }
         }
-        return false;
-    }
-
-    private boolean foundTargetService(ParcelUuid[] uuids) {
-        if (uuids == null)
+        int index = matcher.match(result.getScanRecord().getBytes());
+        if (index < 0) {
             return false;
-        for(ParcelUuid uuid : uuids) {
-            if (uuid.getUuid().compareTo(UUID.fromString(serviceUUID)) == 0) {
-                return true;
+        }
+        String serviceUUID = serviceUUIDs.get(index);
+        Log.d(TAG, "found matched scan result");
+        if (selectionWindowMillis > 0) {
+            selector.onSeen(result.getDevice(), serviceUUID, result.getRssi());
+            if (!selecting) {
+                beginSelection();
             }
+            return false;
+        }
+        if (candidateFilter != null && !candidateFilter.accept(result.getDevice(), result.getRssi())) {
+            return false;
+        }
+        if (stopOnFound) {
+            stop();
+        }
+        if (listener != null) {
+            listener.onFound(result.getDevice(), serviceUUID);
         }
-        return false;
+        return true;
     }
 }
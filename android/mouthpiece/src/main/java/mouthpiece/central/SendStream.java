@@ -0,0 +1,178 @@
+/*
+* Copyright 2015 Lyo Kato (lyo.kato@gmail.com)
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package mouthpiece.central;
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Write-without-response transfer of a whole data source.
+ *
+ * The source is cut into chunks, and at most 'window' chunks are
+ * handed to the connection at a time. Each onCharacteristicWrite
+ * completion gives a credit back, and the next chunk is read then.
+ * So the sender runs as fast as the controller accepts the packets,
+ * without flooding its buffer.
+ */
+public class SendStream {
+
+    public static final int DEFAULT_WINDOW = 4;
+
+    public interface Listener {
+        void onFinished(SendStream stream, boolean success);
+    }
+
+    public interface Source {
+        /**
+         * Fills the buffer and returns the number of bytes,
+         * or -1 when the source reached its end.
+         */
+        int read(byte[] buffer) throws IOException;
+    }
+
+    public static Source from(final InputStream in) {
+        return new Source() {
+            @Override
+            public int read(byte[] buffer) throws IOException {
+                int filled = 0;
+                while (filled < buffer.length) {
+                    int len = in.read(buffer, filled, buffer.length - filled);
+                    if (len < 0) {
+                        break;
+                    }
+                    filled += len;
+                }
+                return (filled == 0) ? -1 : filled;
+            }
+        };
+    }
+
+    public static Source from(final ByteBuffer buffer) {
+        return new Source() {
+            @Override
+            public int read(byte[] dst) {
+                if (!buffer.hasRemaining()) {
+                    return -1;
+                }
+                int len = Math.min(dst.length, buffer.remaining());
+                buffer.get(dst, 0, len);
+                return len;
+            }
+        };
+    }
+
+    private Connection owner;
+    private String uuid;
+    private Source source;
+    private Listener listener;
+
+    private int credits;
+    private int inFlight = 0;
+    private boolean sourceDrained = false;
+    private boolean finished = false;
+
+    private long sentBytes = 0;
+    private long startedAt;
+    private long finishedAt = 0;
+
+    SendStream(Connection owner, String uuid, Source source, int window, Listener listener) {
+        this.owner = owner;
+        this.uuid = uuid;
+        this.source = source;
+        this.credits = window;
+        this.listener = listener;
+        this.startedAt = SystemClock.elapsedRealtime();
+    }
+
+    public String getUuid() {
+        return uuid;
+    }
+
+    public synchronized long getSentBytes() {
+        return sentBytes;
+    }
+
+    public synchronized boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Achieved throughput since the stream started.
+     */
+    public synchronized double getBytesPerSecond() {
+        long end = finished ? finishedAt : SystemClock.elapsedRealtime();
+        long elapsed = Math.max(1, end - startedAt);
+        return sentBytes * 1000.0 / elapsed;
+    }
+
+    /**
+     * Stops the transfer. Chunks already accepted by the stack are still sent.
+     */
+    public void cancel() {
+        owner.finishStream(this, false);
+    }
+
+    /**
+     * Reads the next chunk if a credit is available.
+     * Returns null when the window is full or the source is drained.
+     */
+    synchronized byte[] nextChunk(int chunkSize) throws IOException {
+        if (finished || sourceDrained || credits <= 0) {
+            return null;
+        }
+        byte[] buffer = new byte[chunkSize];
+        int len = source.read(buffer);
+        if (len < 0) {
+            sourceDrained = true;
+            return null;
+        }
+        if (len < chunkSize) {
+            byte[] shrunk = new byte[len];
+            System.arraycopy(buffer, 0, shrunk, 0, len);
+            buffer = shrunk;
+        }
+        credits--;
+        inFlight++;
+        return buffer;
+    }
+
+    synchronized void onChunkSent(int length) {
+        credits++;
+        inFlight--;
+        sentBytes += length;
+    }
+
+    synchronized boolean isCompleted() {
+        return sourceDrained && inFlight == 0;
+    }
+
+    void finish(boolean success) {
+        synchronized (this) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            finishedAt = SystemClock.elapsedRealtime();
+        }
+        if (listener != null) {
+            listener.onFinished(this, success);
+        }
+    }
+}
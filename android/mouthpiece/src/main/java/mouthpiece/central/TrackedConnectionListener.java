@@ -0,0 +1,51 @@
+/*
+* Copyright 2015 Lyo Kato (lyo.kato@gmail.com)
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package mouthpiece.central;
+
+/**
+ * Connection.Listener passing read/write progress to the RequestTracker
+ * of the connection, so the owner handles only the rest.
+ */
+abstract class TrackedConnectionListener implements Connection.Listener {
+
+    private RequestTracker requests;
+
+    TrackedConnectionListener(RequestTracker requests) {
+        this.requests = requests;
+    }
+
+    @Override
+    public void onCharacteristicWriteStarted(Characteristic characteristic) {
+        requests.onWriteStarted(characteristic);
+    }
+
+    @Override
+    public void onCharacteristicReadStarted(Characteristic characteristic) {
+        requests.onReadStarted(characteristic);
+    }
+
+    @Override
+    public void onCharacteristicWrite(boolean success, Characteristic characteristic) {
+        requests.onWriteFinished(success, characteristic);
+    }
+
+    @Override
+    public void onCharacteristicRead(boolean success, Characteristic characteristic) {
+        requests.onReadFinished(success, characteristic);
+    }
+}
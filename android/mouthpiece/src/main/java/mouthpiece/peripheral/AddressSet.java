@@ -0,0 +1,88 @@
+/*
+* Copyright 2015 Lyo Kato (lyo.kato@gmail.com)
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package mouthpiece.peripheral;
+
+/**
+ * A set of subscribers keyed on their addresses.
+ *
+ * Subscriptions change rarely on binder threads, while every update
+ * iterates them from any thread. So changes copy the array under the lock,
+ * and readers take the current array without locking.
+ */
+abstract class AddressSet<T> {
+
+    private final T[] empty = newArray(0);
+
+    private volatile T[] subscribers = empty;
+
+    abstract String addressOf(T subscriber);
+
+    abstract T[] newArray(int length);
+
+    synchronized boolean add(T subscriber) {
+        T[] current = subscribers;
+        if (indexOf(current, addressOf(subscriber)) >= 0) {
+            return false;
+        }
+        T[] next = newArray(current.length + 1);
+        System.arraycopy(current, 0, next, 0, current.length);
+        next[current.length] = subscriber;
+        subscribers = next;
+        return true;
+    }
+
+    synchronized boolean remove(T subscriber) {
+        T[] current = subscribers;
+        int index = indexOf(current, addressOf(subscriber));
+        if (index < 0) {
+            return false;
+        }
+        if (current.length == 1) {
+            subscribers = empty;
+            return true;
+        }
+        T[] next = newArray(current.length - 1);
+        System.arraycopy(current, 0, next, 0, index);
+        System.arraycopy(current, index + 1, next, index, current.length - index - 1);
+        subscribers = next;
+        return true;
+    }
+
+    synchronized void clear() {
+        subscribers = empty;
+    }
+
+    /**
+     * The current subscribers. The array is never modified, don't modify it.
+     */
+    T[] snapshot() {
+        return subscribers;
+    }
+
+    boolean isEmpty() {
+        return subscribers.length == 0;
+    }
+
+    private int indexOf(T[] subscribers, String address) {
+        for (int i = 0; i < subscribers.length; i++) {
+            if (addressOf(subscribers[i]).equals(address)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
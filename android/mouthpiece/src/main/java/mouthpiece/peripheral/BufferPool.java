@@ -0,0 +1,50 @@
+/*
+* Copyright 2015 Lyo Kato (lyo.kato@gmail.com)
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package mouthpiece.peripheral;
+
+import java.util.ArrayDeque;
+
+/**
+ * Reuses byte arrays of one size, so buffers for long writes
+ * are not allocated again for every upload.
+ */
+class BufferPool {
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ArrayDeque<byte[]> buffers = new ArrayDeque<byte[]>();
+
+    BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    synchronized byte[] acquire() {
+        byte[] buffer = buffers.poll();
+        return (buffer != null) ? buffer : new byte[bufferSize];
+    }
+
+    synchronized void release(byte[] buffer) {
+        if (buffer.length == bufferSize && buffers.size() < maxPooled) {
+            buffers.push(buffer);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+* Copyright 2015 Lyo Kato (lyo.kato@gmail.com)
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package mouthpiece.peripheral;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.util.UUID;
+
+/**
+ * Updates the value of a characteristic without looking it up each time.
+ * Get it from MouthPiecePeripheral#getHandle, and keep it.
+ *
+ * A handle is bound to the raw characteristic while the peripheral is running,
+ * and updates are ignored while it isn't.
+ */
+public class CharacteristicHandle {
+
+    private static class Binding {
+        final BluetoothGattCharacteristic rawCharacteristic;
+        final Notifier notifier;
+
+        Binding(BluetoothGattCharacteristic rawCharacteristic, Notifier notifier) {
+            this.rawCharacteristic = rawCharacteristic;
+            this.notifier = notifier;
+        }
+    }
+
+    private final UUID serviceUuid;
+    final MouthPieceCharacteristic characteristic;
+    private volatile Binding binding;
+
+    CharacteristicHandle(UUID serviceUuid, MouthPieceCharacteristic characteristic) {
+        this.serviceUuid = serviceUuid;
+        this.characteristic = characteristic;
+    }
+
+    public UUID getServiceUuid() { return serviceUuid; }
+    public UUID getCharacteristicUuid() { return characteristic.getUuid(); }
+
+    /**
+     * Updates which were notified to the subscribers.
+     */
+    public long getSentUpdates() {
+        return characteristic.getSentUpdates();
+    }
+
+    /**
+     * Updates replaced by a later one within the @MaxNotifyRate interval.
+     */
+    public long getCoalescedUpdates() {
+        return characteristic.getCoalescedUpdates();
+    }
+
+    /**
+     * Reads answered from @ReadCache without running the handler.
+     */
+    public long getReadCacheHits() {
+        return characteristic.getReadCacheHits();
+    }
+
+    public long getReadCacheMisses() {
+        return characteristic.getReadCacheMisses();
+    }
+
+    public boolean isBound() {
+        return (binding != null);
+    }
+
+    /**
+     * Returns false if the peripheral isn't running.
+     */
+    public boolean updateValue(byte[] value) {
+        Binding b = binding;
+        if (b == null) {
+            return false;
+        }
+        characteristic.updateValue(b.notifier, b.rawCharacteristic, value);
+        return true;
+    }
+
+    void bind(Notifier notifier) {
+        binding = new Binding(characteristic.getRawCharacteristic(), notifier);
+    }
+
+    void unbind() {
+        binding = null;
+    }
+}
@@ -0,0 +1,75 @@
+/*
+* Copyright 2015 Lyo Kato (lyo.kato@gmail.com)
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package mouthpiece.peripheral;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattServer;
+
+/**
+ * The one response to onExecuteWrite, sent when the responses of all
+ * the writes it carried are finished, including deferred ones.
+ * It has the first failing status among them.
+ */
+class ExecuteWriteResponse implements WriteResponse.Completion {
+
+    private BluetoothGattServer server;
+    private BluetoothDevice device;
+    private int requestId;
+
+    private int status = BluetoothGatt.GATT_SUCCESS;
+    private int pending = 0;
+    private boolean sealed = false;
+    private boolean sent = false;
+
+    ExecuteWriteResponse(BluetoothGattServer server, BluetoothDevice device, int requestId) {
+        this.server = server;
+        this.device = device;
+        this.requestId = requestId;
+    }
+
+    synchronized WriteResponse newResponse(WriteRequest req) {
+        pending++;
+        return new WriteResponse(req, this);
+    }
+
+    @Override
+    public synchronized void onCompleted(WriteResponse res) {
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            status = res.getStatus();
+        }
+        pending--;
+        sendIfDone();
+    }
+
+    /**
+     * Called after all the writes were dispatched.
+     */
+    synchronized void seal() {
+        sealed = true;
+        sendIfDone();
+    }
+
+    private void sendIfDone() {
+        if (!sealed || pending > 0 || sent) {
+            return;
+        }
+        sent = true;
+        server.sendResponse(device, requestId, status, 0, null);
+    }
+}
@@ -17,15 +17,15 @@
 package mouthpiece.peripheral;
 
 import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
+import android.util.Log;
 
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class MouthPieceCharacteristic {
 
@@ -34,37 +34,77 @@ public class MouthPieceCharacteristic {
     private static final String CONFIG_UUID = "00002902-0000-1000-8000-00805f9b34fb";
 
     private UUID uuid;
-    private Map<MouthPiecePeripheral.Event, Method> handlers;
-    private Map<String, BluetoothDevice> devicesForNotification;
+    private ReadHandler readHandler;
+    private WriteHandler writeHandler;
+    private WriteBatcher writeBatcher;
+    private final SubscriberSet devicesForNotification = new SubscriberSet();
     private int properties;
     private int permissions;
 
+    // incremented on every change of the value
+    private final AtomicLong version = new AtomicLong();
+    private volatile boolean alwaysNotify = false;
+    private volatile boolean framedNotification = false;
+    private volatile NotifyRateLimiter rateLimiter;
+    private volatile ReadValueCache readCache;
+
+    private final AtomicLong sentUpdates = new AtomicLong();
+    private final AtomicLong coalescedUpdates = new AtomicLong();
+
+    // created at start() of the peripheral
+    private volatile BluetoothGattCharacteristic rawCharacteristic;
+
     MouthPieceCharacteristic(UUID uuid) {
         this.uuid = uuid;
-        this.handlers = new HashMap<MouthPiecePeripheral.Event, Method>();
-        this.devicesForNotification = new HashMap<String, BluetoothDevice>();
         this.properties = 0;
         this.permissions = 0;
     }
 
-    Collection<BluetoothDevice> getDevicesToNotify() {
-        return this.devicesForNotification.values();
+    UUID getUuid() {
+        return this.uuid;
+    }
+
+    BluetoothDevice[] getDevicesToNotify() {
+        return this.devicesForNotification.snapshot();
     }
 
     void rememberDeviceForNotification(BluetoothDevice device) {
-        devicesForNotification.put(device.getAddress(), device);
+        devicesForNotification.add(device);
     }
 
     void forgetDeviceForNotification(BluetoothDevice device) {
-        devicesForNotification.remove(device.getAddress());
+        devicesForNotification.remove(device);
+    }
+
+    void setReadHandler(ReadHandler handler) {
+        this.readHandler = handler;
     }
 
-    void addHandler(MouthPiecePeripheral.Event eventType, Method handler) {
-        this.handlers.put(eventType, handler);
+    void setWriteHandler(WriteHandler handler) {
+        this.writeHandler = handler;
+    }
+
+    void setBatchWriteHandler(BatchWriteHandler handler, int size, int maxDelayMillis) {
+        this.writeBatcher = new WriteBatcher(uuid, handler, size, maxDelayMillis);
+    }
+
+    boolean isBatched() {
+        return (writeBatcher != null);
+    }
+
+    void offerBatchedWrite(BluetoothDevice device, byte[] value, Executor executor) {
+        writeBatcher.offer(device, value, executor);
     }
 
     boolean canHandle(MouthPiecePeripheral.Event eventType) {
-        return this.handlers.containsKey(eventType);
+        switch (eventType) {
+            case READ:
+                return (readHandler != null);
+            case WRITE:
+                return (writeHandler != null || writeBatcher != null);
+            default:
+                return false;
+        }
     }
 
     void addPermission(int permission) {
@@ -75,42 +115,163 @@ public class MouthPieceCharacteristic {
         this.properties |= property;
     }
 
-    void handleReadRequest(MouthPieceService parent, ReadRequest req, ReadResponse res) {
-        if (canHandle(MouthPiecePeripheral.Event.READ)) {
-            Method method = this.handlers.get(MouthPiecePeripheral.Event.READ);
+    void removeProperty(int property) {
+        this.properties &= ~property;
+    }
+
+    void handleReadRequest(ReadRequest req, ReadResponse res) {
+        if (readHandler != null) {
+            res.setCharacteristic(this);
+            ReadValueCache cache = readCache;
+            if (cache != null) {
+                byte[] cached = cache.get(getVersion());
+                if (cached != null) {
+                    res.setCachedValue(cached);
+                    return;
+                }
+            }
             try {
-                method.invoke(parent, req, res);
-            } catch (IllegalAccessException e) {
-                e.printStackTrace();
-            } catch (InvocationTargetException e) {
-                e.printStackTrace();
+                readHandler.onRead(req, res);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "read handler failed", e);
+                return;
+            }
+            // a deferred value is not known yet, and a failed read has no value to keep
+            if (cache != null && !res.isDeferred() && res.getStatus() == BluetoothGatt.GATT_SUCCESS) {
+                cache.put(getValue(req.getCharacteristic()), getVersion());
             }
         }
     }
 
-    void handleWriteRequest(MouthPieceService parent, WriteRequest req, WriteResponse res) {
-        if (canHandle(MouthPiecePeripheral.Event.WRITE)) {
-            Method method  = this.handlers.get(MouthPiecePeripheral.Event.WRITE);
+    void handleWriteRequest(WriteRequest req, WriteResponse res) {
+        if (writeHandler != null) {
             try {
-                method.invoke(parent, req, res);
-            } catch (IllegalAccessException e) {
-                e.printStackTrace();
-            } catch (InvocationTargetException e) {
-                e.printStackTrace();
+                writeHandler.onWrite(req, res);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "write handler failed", e);
             }
         }
     }
 
+    BluetoothGattCharacteristic getRawCharacteristic() {
+        return rawCharacteristic;
+    }
+
+    long getVersion() {
+        return version.get();
+    }
+
+    void markChanged() {
+        version.incrementAndGet();
+    }
+
+    /**
+     * When true, every update counts as a change and is notified,
+     * even if the value is the same as before.
+     */
+    void setAlwaysNotify(boolean alwaysNotify) {
+        this.alwaysNotify = alwaysNotify;
+    }
+
+    /**
+     * When true, notifications are split into mouthpiece.utils.Fragmenter
+     * fragments sized to the MTU of each device.
+     */
+    void setFramedNotification(boolean framed) {
+        this.framedNotification = framed;
+    }
+
+    // the notifier may put a fragment there for a moment
+    static byte[] getValue(BluetoothGattCharacteristic rawCh) {
+        synchronized (rawCh) {
+            return rawCh.getValue();
+        }
+    }
+
+    /**
+     * Returns false when the value is the same as the current one.
+     * The same array as the current value is taken as modified in place.
+     */
+    boolean setValue(BluetoothGattCharacteristic rawCh, byte[] value) {
+        // the notifier may put a fragment there for a moment
+        synchronized (rawCh) {
+            if (!alwaysNotify) {
+                byte[] current = rawCh.getValue();
+                if (current != value && Arrays.equals(current, value)) {
+                    return false;
+                }
+            }
+            rawCh.setValue(value);
+        }
+        markChanged();
+        return true;
+    }
+
+    /**
+     * 0 or less removes the limit.
+     */
+    void setMaxNotifyRate(int perSecond) {
+        this.rateLimiter = (perSecond > 0) ? new NotifyRateLimiter(this, 1000 / perSecond) : null;
+    }
+
+    void updateValue(Notifier notifier, BluetoothGattCharacteristic rawCh, byte[] value) {
+        if (setValue(rawCh, value)) {
+            notifyChanged(notifier, rawCh);
+        }
+    }
+
+    void notifyChanged(Notifier notifier, BluetoothGattCharacteristic rawCh) {
+        NotifyRateLimiter limiter = rateLimiter;
+        if (limiter != null) {
+            limiter.offer(notifier, rawCh);
+        } else {
+            sendNotification(notifier, rawCh);
+        }
+    }
+
+    void sendNotification(Notifier notifier, BluetoothGattCharacteristic rawCh) {
+        sentUpdates.incrementAndGet();
+        notifier.enqueue(getDevicesToNotify(), rawCh, framedNotification);
+    }
+
+    void onCoalesced() {
+        coalescedUpdates.incrementAndGet();
+    }
+
+    void setReadCache(int maxAgeMillis, boolean invalidateOnUpdate) {
+        this.readCache = new ReadValueCache(maxAgeMillis, invalidateOnUpdate);
+    }
+
+    long getReadCacheHits() {
+        ReadValueCache cache = readCache;
+        return (cache != null) ? cache.getHits() : 0;
+    }
+
+    long getReadCacheMisses() {
+        ReadValueCache cache = readCache;
+        return (cache != null) ? cache.getMisses() : 0;
+    }
+
+    long getSentUpdates() {
+        return sentUpdates.get();
+    }
+
+    long getCoalescedUpdates() {
+        return coalescedUpdates.get();
+    }
+
     BluetoothGattCharacteristic createRawCharacteristic() {
 
         BluetoothGattCharacteristic ch = new BluetoothGattCharacteristic(
                 this.uuid, this.properties, this.permissions);
-        if ((this.properties & BluetoothGattCharacteristic.PROPERTY_NOTIFY) == BluetoothGattCharacteristic.PROPERTY_NOTIFY) {
+        if ((this.properties & (BluetoothGattCharacteristic.PROPERTY_NOTIFY
+                | BluetoothGattCharacteristic.PROPERTY_INDICATE)) != 0) {
             BluetoothGattDescriptor descriptor = new BluetoothGattDescriptor(UUID.fromString(CONFIG_UUID),
                     BluetoothGattCharacteristic.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE);
             descriptor.setValue(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
             ch.addDescriptor(descriptor);
         }
+        this.rawCharacteristic = ch;
         return ch;
     }
 
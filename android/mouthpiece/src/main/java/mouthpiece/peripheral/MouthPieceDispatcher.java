@@ -0,0 +1,45 @@
+/*
+* Copyright 2015 Lyo Kato (lyo.kato@gmail.com)
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package mouthpiece.peripheral;
+
+/**
+ * Registers the annotated handlers of a service without reflection.
+ *
+ * The implementation is generated by mouthpiece-processor as
+ * '[binary name of the service]_MouthPieceDispatcher' in the same package,
+ * and loaded once per service class. Services compiled without
+ * the processor are analyzed by reflection as before.
+ */
+public interface MouthPieceDispatcher<T extends MouthPieceService> {
+
+    String SUFFIX = "_MouthPieceDispatcher";
+
+    interface Registry {
+        void addReadHandler(String characteristicUUID, ReadHandler handler);
+        void addWriteHandler(String characteristicUUID, WriteHandler handler);
+        void addBatchWriteHandler(String characteristicUUID, BatchWriteHandler handler, int size, int maxDelayMillis);
+        void setNotifiable(String characteristicUUID, boolean notifiable);
+        void setIndicatable(String characteristicUUID, boolean indicatable);
+        void setAlwaysNotify(String characteristicUUID, boolean always);
+        void setFramedNotification(String characteristicUUID, boolean framed);
+        void setMaxNotifyRate(String characteristicUUID, int perSecond);
+        void setReadCache(String characteristicUUID, int maxAgeMillis, boolean invalidateOnUpdate);
+        void setResponseNeeded(String characteristicUUID, boolean responseNeeded);
+    }
+
+    void register(T service, Registry registry);
+}
@@ -34,12 +34,19 @@ import android.bluetooth.le.BluetoothLeAdvertiser;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.os.ParcelUuid;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Executor;
+
+import mouthpiece.peripheral.exception.InvalidConfigurationException;
 
 public class MouthPiecePeripheral {
 
@@ -56,13 +63,32 @@ public class MouthPiecePeripheral {
         void onConnectionStateChange(BluetoothDevice device, int status, int newState);
     }
 
+    /**
+     * Told when the server has all services added and advertising has started.
+     */
+    public static interface StartListener {
+        int FAILURE_ADD_SERVICE = 1;
+        int FAILURE_ADVERTISE   = 2;
+
+        void onReady(StartupReport report);
+        // errorCode is the GATT status or the advertise error code
+        void onStartFailure(int failure, int errorCode);
+    }
+
     private Map<UUID, MouthPieceService> services;
-    private BluetoothGattServer rawServer;
+    private volatile BluetoothGattServer rawServer;
+    private volatile Notifier notifier;
+    private final SubscriptionIndex subscriptions = new SubscriptionIndex();
+    private static final int DEFAULT_READ_SNAPSHOT_TTL_MILLIS = 5000;
+    private final ReadSnapshots readSnapshots = new ReadSnapshots(DEFAULT_READ_SNAPSHOT_TTL_MILLIS);
+    private final PreparedWrites preparedWrites = new PreparedWrites();
+    private final List<CharacteristicHandle> handles = new ArrayList<CharacteristicHandle>();
     private Context context;
     private boolean running;
     private BluetoothLeAdvertiser advertiser;
     private AdvertiseCallback advertiseCallback;
     private Listener listener;
+    private volatile Startup startup;
 
     private BluetoothManager manager;
     private BluetoothAdapter adapter;
@@ -71,6 +97,10 @@ public class MouthPiecePeripheral {
     private int advertiseTxPower = AdvertiseSettings.ADVERTISE_TX_POWER_MEDIUM;
     private boolean includeTxPower = false;
 
+    private Executor handlerExecutor;
+    // device address -> executor keeping the order of its requests
+    private final Map<String, SerialExecutor> deviceExecutors = new HashMap<String, SerialExecutor>();
+
     public static MouthPiecePeripheral build(Activity activity, MouthPieceService service) {
         return new Builder(activity).service(service).build();
     }
@@ -99,10 +129,43 @@ public class MouthPiecePeripheral {
         this.includeTxPower = include;
     }
 
+    /**
+     * How long the value read at offset 0 is kept for the following reads
+     * with offsets, which a central uses for a value longer than one response.
+     */
+    public void setReadSnapshotTtlMillis(int ttlMillis) {
+        this.readSnapshots.setTtlMillis(ttlMillis);
+    }
+
+    /**
+     * Runs @OnRead and @OnWrite handlers on this executor instead of the binder thread.
+     * Requests from one device are handled in order. null runs them inline (default).
+     */
+    public void setHandlerExecutor(Executor executor) {
+        this.handlerExecutor = executor;
+    }
+
+    private void runHandler(BluetoothDevice device, Runnable task) {
+        if (handlerExecutor == null) {
+            task.run();
+            return;
+        }
+        SerialExecutor executor;
+        synchronized (deviceExecutors) {
+            executor = deviceExecutors.get(device.getAddress());
+            if (executor == null) {
+                executor = new SerialExecutor(handlerExecutor);
+                deviceExecutors.put(device.getAddress(), executor);
+            }
+        }
+        executor.execute(task);
+    }
+
     public void updateValue(String serviceUUIDString, String chUUIDString, byte[] value) {
 
         if (rawServer == null)
             return;
+        Notifier notifier = this.notifier;
 
         UUID serviceUUID = UUID.fromString(serviceUUIDString);
         UUID chUUID = UUID.fromString(chUUIDString);
@@ -117,7 +180,54 @@ public class MouthPiecePeripheral {
         if (service == null)
             return;
 
-        service.updateValue(rawServer, rawCh, value);
+        service.updateValue(notifier, rawCh, value);
+    }
+
+    /**
+     * Resolves the characteristic once for frequent updates.
+     * Available before start(), the handle works while the peripheral is running.
+     */
+    public CharacteristicHandle getHandle(String serviceUUIDString, String chUUIDString) {
+        UUID serviceUUID = UUID.fromString(serviceUUIDString);
+        MouthPieceService service = services.get(serviceUUID);
+        if (service == null)
+            throw new InvalidConfigurationException("Unknown service: " + serviceUUIDString);
+        MouthPieceCharacteristic ch = service.getCharacteristic(UUID.fromString(chUUIDString));
+        if (ch == null)
+            throw new InvalidConfigurationException("Unknown characteristic: " + chUUIDString);
+
+        synchronized (handles) {
+            for (CharacteristicHandle handle : handles) {
+                if (handle.characteristic == ch) {
+                    return handle;
+                }
+            }
+            CharacteristicHandle handle = new CharacteristicHandle(serviceUUID, ch);
+            if (running) {
+                handle.bind(notifier);
+            }
+            handles.add(handle);
+            return handle;
+        }
+    }
+
+    /**
+     * The MTU negotiated with the device, or the default 23.
+     */
+    public int getMtu(BluetoothDevice device) {
+        Notifier notifier = this.notifier;
+        return (notifier != null) ? notifier.getMtu(device) : Notifier.DEFAULT_MTU;
+    }
+
+    /**
+     * Which centrals subscribe to which characteristics now.
+     */
+    public List<Subscription> getSubscriptions() {
+        return subscriptions.getAll();
+    }
+
+    public List<Subscription> getSubscriptions(BluetoothDevice device) {
+        return subscriptions.get(device);
     }
 
     public boolean systemSupported() {
@@ -143,6 +253,17 @@ public class MouthPiecePeripheral {
     }
 
     public boolean start() {
+        return start(null);
+    }
+
+    /**
+     * Opens the server and adds the services one after another, each when
+     * onServiceAdded came for the previous one. Advertising starts after the
+     * last one, and the listener is told with the time each phase took.
+     * Returns false when it could not begin, or when it failed before returning,
+     * in which case the listener has been told with onStartFailure.
+     */
+    public boolean start(StartListener startListener) {
 
         if (running) {
             // XXX: should throw exception?
@@ -153,28 +274,132 @@ public class MouthPiecePeripheral {
             return false;
         }
 
+        advertiser = adapter.getBluetoothLeAdvertiser();
+        if (advertiser == null) {
+            return false;
+        }
+
+        Startup startup = new Startup(startListener);
+        this.startup = startup;
+
         rawServer = manager.openGattServer(context, createServerCallback());
         if (rawServer == null) {
+            this.startup = null;
             return false;
         }
+        notifier = new Notifier(rawServer);
+        startup.onServerOpened();
+
+        running = true;
+        startup.addNextService();
+        // a service the server refused right away has failed and stopped it already
+        return !startup.hasFailed();
+    }
+
+    /**
+     * One run of the startup pipeline. Callbacks arriving after stop()
+     * find another (or no) startup in place and are ignored.
+     */
+    private class Startup {
+
+        private final StartListener startListener;
+        private final LinkedList<MouthPieceService> pending;
+        private final StartupReport report = new StartupReport();
+        private final long startedAt;
+        private long phaseStartedAt;
+        private MouthPieceService adding;
+        private boolean failed = false;
+
+        Startup(StartListener startListener) {
+            this.startListener = startListener;
+            this.pending = new LinkedList<MouthPieceService>(services.values());
+            this.startedAt = SystemClock.uptimeMillis();
+            this.phaseStartedAt = startedAt;
+        }
 
-        for (Map.Entry<UUID, MouthPieceService> e : services.entrySet()) {
-            rawServer.addService(e.getValue().createRawService());
+        private long endPhase() {
+            long now = SystemClock.uptimeMillis();
+            long elapsed = now - phaseStartedAt;
+            phaseStartedAt = now;
+            return elapsed;
         }
 
-        advertiser = adapter.getBluetoothLeAdvertiser();
-        if (advertiser == null) {
-            return false;
+        synchronized void onServerOpened() {
+            report.setOpenServerMillis(endPhase());
         }
 
-        advertiseCallback = createAdvertiseCallback();
-        advertiser.startAdvertising(
-                createAdvertiseSettings(), 
-                createAdvertiseData(), 
-                advertiseCallback);
+        synchronized void addNextService() {
+            if (startup != this) {
+                return;
+            }
+            adding = pending.poll();
+            if (adding == null) {
+                startAdvertising();
+                return;
+            }
+            if (!rawServer.addService(adding.createRawService())) {
+                fail(StartListener.FAILURE_ADD_SERVICE, BluetoothGatt.GATT_FAILURE);
+            }
+        }
 
-        running = true;
-        return true;
+        synchronized void onServiceAdded(int status, BluetoothGattService service) {
+            if (startup != this || adding == null || !adding.getUuid().equals(service.getUuid())) {
+                return;
+            }
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                fail(StartListener.FAILURE_ADD_SERVICE, status);
+                return;
+            }
+            report.addServiceMillis(adding.getUuid(), endPhase());
+            addNextService();
+        }
+
+        private void startAdvertising() {
+            synchronized (handles) {
+                for (CharacteristicHandle handle : handles) {
+                    handle.bind(notifier);
+                }
+            }
+            advertiseCallback = createAdvertiseCallback(this);
+            advertiser.startAdvertising(
+                    createAdvertiseSettings(),
+                    createAdvertiseData(),
+                    advertiseCallback);
+        }
+
+        synchronized void onAdvertiseStarted() {
+            if (startup != this) {
+                return;
+            }
+            startup = null;
+            report.setAdvertiseStartMillis(endPhase());
+            report.setTotalMillis(SystemClock.uptimeMillis() - startedAt);
+            Log.d(TAG, "ready: " + report);
+            if (startListener != null) {
+                startListener.onReady(report);
+            }
+        }
+
+        synchronized void onAdvertiseFailed(int errorCode) {
+            if (startup != this) {
+                return;
+            }
+            fail(StartListener.FAILURE_ADVERTISE, errorCode);
+        }
+
+        synchronized boolean hasFailed() {
+            return failed;
+        }
+
+        private void fail(int failure, int errorCode) {
+            Log.w(TAG, "failed to start: " + failure + ", " + errorCode);
+            failed = true;
+            startup = null;
+            stop();
+            if (startListener != null) {
+                startListener.onStartFailure(failure, errorCode);
+            }
+        }
     }
 
     private AdvertiseData createAdvertiseData() {
@@ -202,32 +427,49 @@ public class MouthPiecePeripheral {
         if (!running)
             return;
 
+        startup = null;
+
+        synchronized (handles) {
+            for (CharacteristicHandle handle : handles) {
+                handle.unbind();
+            }
+        }
+        if (notifier != null) {
+            notifier.close();
+        }
+        readSnapshots.clear();
+        preparedWrites.clear();
+        for (Subscription subscription : subscriptions.clear()) {
+            subscription.characteristic.forgetDeviceForNotification(subscription.getDevice());
+        }
         if (rawServer != null) {
             rawServer.clearServices();
             rawServer.close();
             rawServer = null;
         }
 
-        if (advertiser != null) {
+        if (advertiser != null && advertiseCallback != null) {
             advertiser.stopAdvertising(advertiseCallback);
+            advertiseCallback = null;
         }
         running = false;
     }
 
-    private AdvertiseCallback createAdvertiseCallback() {
+    private AdvertiseCallback createAdvertiseCallback(final Startup startup) {
         return new AdvertiseCallback() {
             @Override
             public void onStartSuccess(AdvertiseSettings settingsInEffect) {
+                startup.onAdvertiseStarted();
                 if (listener != null) {
                     listener.onAdvertiseSuccess(settingsInEffect);
                 }
             }
             @Override
             public void onStartFailure(int errorCode) {
-                // need to stop and clear service here?
                 if (listener != null) {
                     listener.onAdvertiseFailure(errorCode);
                 }
+                startup.onAdvertiseFailed(errorCode);
             }
         };
     }
@@ -243,6 +485,10 @@ public class MouthPiecePeripheral {
                 } else {
                     Log.d(TAG, "BLE Service Not Added");
                 }
+                Startup current = startup;
+                if (current != null) {
+                    current.onServiceAdded(status, service);
+                }
             }
 
             @Override
@@ -251,28 +497,99 @@ public class MouthPiecePeripheral {
 
                 Log.d(TAG, "onDescriptorWriteRequest");
 
-                if (descriptor.getUuid().equals(UUID.fromString("00002902-0000-1000-8000-00805F9B34FB"))
-                            && Arrays.equals(value, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE)) {
-
+                if (descriptor.getUuid().equals(UUID.fromString("00002902-0000-1000-8000-00805F9B34FB"))) {
                     UUID serviceUUID = descriptor.getCharacteristic().getService().getUuid();
                     UUID chUUID = descriptor.getCharacteristic().getUuid();
                     Log.d(TAG, "onDescriptorWriteRequest:" + chUUID.toString());
                     MouthPieceService service = services.get(serviceUUID);
-                    service.rememberDeviceForNotification(device, chUUID);
+                    MouthPieceCharacteristic ch = (service != null) ? service.getCharacteristic(chUUID) : null;
+                    if (ch != null) {
+                        boolean indication = Arrays.equals(value, BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
+                        if (indication || Arrays.equals(value, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE)) {
+                            notifier.setIndication(device, ch.getRawCharacteristic(), indication);
+                            if (subscriptions.add(device, serviceUUID, ch)) {
+                                ch.rememberDeviceForNotification(device);
+                            }
+                        } else if (Arrays.equals(value, BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE)) {
+                            notifier.setIndication(device, ch.getRawCharacteristic(), false);
+                            if (subscriptions.remove(device, ch)) {
+                                ch.forgetDeviceForNotification(device);
+                            }
+                        }
+                    }
                 }
 
                 rawServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, value);        
             }
 
+            @Override
+            public void onExecuteWrite(final BluetoothDevice device, final int requestId, boolean execute) {
+
+                Log.d(TAG, "onExecuteWrite: " + execute);
+
+                if (!execute) {
+                    preparedWrites.discard(device);
+                    rawServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, null);
+                    return;
+                }
+
+                final List<PreparedWrites.Write> writes = preparedWrites.take(device);
+                runHandler(device, new Runnable() {
+                    @Override
+                    public void run() {
+                        BluetoothGattServer server = rawServer;
+                        if (server == null) {
+                            return;
+                        }
+                        ExecuteWriteResponse response = new ExecuteWriteResponse(server, device, requestId);
+                        for (PreparedWrites.Write write : writes) {
+                            MouthPieceService service = services.get(write.characteristic.getService().getUuid());
+                            MouthPieceCharacteristic ch = (service != null)
+                                    ? service.getCharacteristic(write.characteristic.getUuid()) : null;
+                            if (ch != null && ch.isBatched()) {
+                                ch.offerBatchedWrite(device, write.value, handlerExecutor);
+                                continue;
+                            }
+                            // one request with the whole value, answered together by the execute response
+                            WriteRequest req = new WriteRequest(device, requestId, write.characteristic,
+                                    false, false, 0, write.value);
+                            WriteResponse res = response.newResponse(req);
+                            if (service != null && service.canHandle(req.getUuid(), Event.WRITE)) {
+                                service.dispatchWriteRequest(req, res, notifier);
+                            }
+                            res.finishOn(server);
+                        }
+                        response.seal();
+                    }
+                });
+            }
+
+            @Override
+            public void onMtuChanged(BluetoothDevice device, int mtu) {
+                Log.d(TAG, "onMtuChanged: " + mtu);
+                notifier.setMtu(device, mtu);
+            }
+
+            @Override
+            public void onNotificationSent(BluetoothDevice device, int status) {
+                notifier.onNotificationSent(device, status);
+            }
+
             @Override
             public void onConnectionStateChange(BluetoothDevice device, int status, int newState) {
 
                 Log.d(TAG, "BLE connection state changed");
 
-                if (status == BluetoothProfile.STATE_DISCONNECTED) {
-                    for (Map.Entry<UUID, MouthPieceService> e : services.entrySet()) {
-                        MouthPieceService service = e.getValue();
-                        service.forgetDeviceForNotification(device);
+                if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                    for (Subscription subscription : subscriptions.removeAll(device)) {
+                        subscription.characteristic.forgetDeviceForNotification(device);
+                    }
+                    notifier.forget(device);
+                    readSnapshots.remove(device);
+                    preparedWrites.discard(device);
+                    // tasks already queued still run on the removed executor
+                    synchronized (deviceExecutors) {
+                        deviceExecutors.remove(device.getAddress());
                     }
                 }
 
@@ -286,18 +603,34 @@ public class MouthPiecePeripheral {
                     int requestId, int offset, BluetoothGattCharacteristic characteristic) {
 
                 Log.d(TAG, "onCharacteristicReadRequest");
-                ReadRequest req = new ReadRequest(device, requestId, offset, characteristic);
-                ReadResponse res = new ReadResponse(req);
+                final ReadRequest req = new ReadRequest(device, requestId, offset, characteristic);
+                final ReadResponse res = new ReadResponse(req, readSnapshots);
+
+                if (offset > 0) {
+                    // the rest of the value the handler made at offset 0
+                    byte[] snapshot = readSnapshots.get(device, characteristic);
+                    if (snapshot != null) {
+                        ReadResponse.sendPart(rawServer, req, BluetoothGatt.GATT_SUCCESS, snapshot);
+                        return;
+                    }
+                }
 
                 UUID serviceUUID = characteristic.getService().getUuid();
-                MouthPieceService service = services.get(serviceUUID);
-
-                    if (service.canHandle(req.getUuid(), Event.READ)) {
-                        service.dispatchReadRequest(req, res);
-                        //break;
+                final MouthPieceService service = services.get(serviceUUID);
+
+                runHandler(device, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (service.canHandle(req.getUuid(), Event.READ)) {
+                            service.dispatchReadRequest(req, res, notifier);
+                        }
+                        // the server may be closed while the handler was running
+                        BluetoothGattServer server = rawServer;
+                        if (server != null) {
+                            res.finishOn(server);
+                        }
                     }
-
-                res.finishOn(rawServer);
+                });
             }
 
             @Override
@@ -306,18 +639,46 @@ public class MouthPiecePeripheral {
                     boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
 
                 Log.d(TAG, "onCharacteristicWriteRequest");
-                WriteRequest req = new WriteRequest(device, requestId, characteristic,
-                        preparedWrite, responseNeeded, offset, value); 
-                WriteResponse res = new WriteResponse(req);
 
-                UUID serviceUUID = characteristic.getService().getUuid();
-                MouthPieceService service = services.get(serviceUUID);
+                if (preparedWrite) {
+                    // put together until onExecuteWrite, the response echoes the part
+                    int status = preparedWrites.append(device, characteristic, offset, value);
+                    if (responseNeeded) {
+                        rawServer.sendResponse(device, requestId, status, offset, value);
+                    }
+                    return;
+                }
 
-                if (service.canHandle(req.getUuid(), Event.WRITE)) {
-                    service.dispatchWriteRequest(req, res, rawServer);
+                UUID serviceUUID = characteristic.getService().getUuid();
+                final MouthPieceService service = services.get(serviceUUID);
+
+                MouthPieceCharacteristic ch = (service != null) ? service.getCharacteristic(characteristic.getUuid()) : null;
+                if (ch != null && ch.isBatched()) {
+                    // a batch handler can't answer each write, so accept it here
+                    ch.offerBatchedWrite(device, value, handlerExecutor);
+                    if (responseNeeded) {
+                        rawServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, null);
+                    }
+                    return;
                 }
 
-                res.finishOn(rawServer);
+                final WriteRequest req = new WriteRequest(device, requestId, characteristic,
+                        preparedWrite, responseNeeded, offset, value); 
+                final WriteResponse res = new WriteResponse(req);
+
+                runHandler(device, new Runnable() {
+                    @Override
+                    public void run() {
+                        BluetoothGattServer server = rawServer;
+                        if (server == null) {
+                            return;
+                        }
+                        if (service.canHandle(req.getUuid(), Event.WRITE)) {
+                            service.dispatchWriteRequest(req, res, notifier);
+                        }
+                        res.finishOn(server);
+                    }
+                });
             }
         };
     }
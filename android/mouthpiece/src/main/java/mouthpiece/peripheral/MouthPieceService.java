@@ -18,21 +18,22 @@ package mouthpiece.peripheral;
 
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattServer;
 import android.bluetooth.BluetoothGattService;
 import android.util.Log;
 
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.util.Arrays;
-import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
 
 import mouthpiece.peripheral.exception.InvalidConfigurationException;
+import mouthpiece.peripheral.annotation.Batch;
+import mouthpiece.peripheral.annotation.MaxNotifyRate;
 import mouthpiece.peripheral.annotation.Notifiable;
 import mouthpiece.peripheral.annotation.OnRead;
 import mouthpiece.peripheral.annotation.OnWrite;
+import mouthpiece.peripheral.annotation.ReadCache;
 import mouthpiece.peripheral.annotation.ResponseNeeded;
 
 public abstract class MouthPieceService {
@@ -67,57 +68,46 @@ public abstract class MouthPieceService {
         return ch.canHandle(eventType);
     }
 
-    void dispatchReadRequest(ReadRequest req, ReadResponse res) {
+    void dispatchReadRequest(ReadRequest req, ReadResponse res, Notifier notifier) {
         if (!canHandle(req.getUuid(), MouthPiecePeripheral.Event.READ)) {
             return;
         }
         MouthPieceCharacteristic ch = this.characteristics.get(req.getUuid());
-        ch.handleReadRequest(this, req, res);
-    }
-
-    void rememberDeviceForNotification(BluetoothDevice device, UUID characteristicUUID) {
-        MouthPieceCharacteristic ch = this.characteristics.get(characteristicUUID);
-        ch.rememberDeviceForNotification(device); 
+        long version = ch.getVersion();
+        ch.handleReadRequest(req, res);
+        if (ch.getVersion() != version) {
+            ch.notifyChanged(notifier, req.getCharacteristic());
+        }
     }
 
-    void forgetDeviceForNotification(BluetoothDevice device) {
-        for (Map.Entry<UUID, MouthPieceCharacteristic> e : characteristics.entrySet()) {
-            e.getValue().forgetDeviceForNotification(device);
-        }
+    MouthPieceCharacteristic getCharacteristic(UUID uuid) {
+        return this.characteristics.get(uuid);
     }
 
-    void dispatchWriteRequest(WriteRequest req, WriteResponse res,
-            BluetoothGattServer rawServer) {
+    void dispatchWriteRequest(WriteRequest req, WriteResponse res, Notifier notifier) {
         if (!canHandle(req.getUuid(), MouthPiecePeripheral.Event.WRITE)) {
             return;
         }
         MouthPieceCharacteristic ch = this.characteristics.get(req.getUuid());
 
-        byte[] valueBeforeWritten = req.getCharacteristic().getValue();
-        ch.handleWriteRequest(this, req, res);
-        byte[] valueAfterWritten = req.getCharacteristic().getValue();
-        if (!Arrays.equals(valueBeforeWritten, valueAfterWritten)) {
-            Collection<BluetoothDevice> devices = ch.getDevicesToNotify();
-            for (BluetoothDevice d : devices) {
-                rawServer.notifyCharacteristicChanged(d, req.getCharacteristic(), false);
-            }
+        long version = ch.getVersion();
+        byte[] valueBeforeWritten = MouthPieceCharacteristic.getValue(req.getCharacteristic());
+        ch.handleWriteRequest(req, res);
+        // updateValue in the handler has notified already. A value set on
+        // the raw characteristic directly is detected by its reference.
+        if (ch.getVersion() == version
+                && MouthPieceCharacteristic.getValue(req.getCharacteristic()) != valueBeforeWritten) {
+            ch.markChanged();
+            ch.notifyChanged(notifier, req.getCharacteristic());
         }
     }
 
-    void updateValue(BluetoothGattServer rawServer, 
-            BluetoothGattCharacteristic rawCh, byte[] value) {
+    void updateValue(Notifier notifier, BluetoothGattCharacteristic rawCh, byte[] value) {
         MouthPieceCharacteristic ch = characteristics.get(rawCh.getUuid());
         if (ch == null)
             return;
 
-        if (!Arrays.equals(rawCh.getValue(), value)) {
-            rawCh.setValue(value);
-
-            Collection<BluetoothDevice> devices = ch.getDevicesToNotify();
-            for (BluetoothDevice d : devices) {
-                rawServer.notifyCharacteristicChanged(d, rawCh, false);
-            }
-        }
+        ch.updateValue(notifier, rawCh, value);
     }
 
     BluetoothGattService createRawService() {
@@ -130,21 +120,163 @@ public abstract class MouthPieceService {
         return service;
     }
 
+    // service class -> generated dispatcher, or NO_DISPATCHER
+    private static final Map<Class<?>, MouthPieceDispatcher<?>> dispatchers =
+            new HashMap<Class<?>, MouthPieceDispatcher<?>>();
+
+    private static final MouthPieceDispatcher<MouthPieceService> NO_DISPATCHER =
+            new MouthPieceDispatcher<MouthPieceService>() {
+        @Override
+        public void register(MouthPieceService service, Registry registry) {}
+    };
+
+    private final MouthPieceDispatcher.Registry registry = new MouthPieceDispatcher.Registry() {
+        @Override
+        public void addReadHandler(String characteristicUUID, ReadHandler handler) {
+            MouthPieceCharacteristic ch = getOrCreateCharacteristic(characteristicUUID);
+            ch.setReadHandler(handler);
+            ch.addProperty(BluetoothGattCharacteristic.PROPERTY_READ);
+            ch.addPermission(BluetoothGattCharacteristic.PERMISSION_READ);
+        }
+        @Override
+        public void addWriteHandler(String characteristicUUID, WriteHandler handler) {
+            MouthPieceCharacteristic ch = getOrCreateCharacteristic(characteristicUUID);
+            ch.setWriteHandler(handler);
+            ch.addPermission(BluetoothGattCharacteristic.PERMISSION_WRITE);
+            // both types are accepted unless @ResponseNeeded says otherwise
+            ch.addProperty(BluetoothGattCharacteristic.PROPERTY_WRITE);
+            ch.addProperty(BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE);
+        }
+        @Override
+        public void addBatchWriteHandler(String characteristicUUID, BatchWriteHandler handler,
+                int size, int maxDelayMillis) {
+            MouthPieceCharacteristic ch = getOrCreateCharacteristic(characteristicUUID);
+            ch.setBatchWriteHandler(handler, size, maxDelayMillis);
+            ch.addPermission(BluetoothGattCharacteristic.PERMISSION_WRITE);
+            ch.addProperty(BluetoothGattCharacteristic.PROPERTY_WRITE);
+            ch.addProperty(BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE);
+        }
+        @Override
+        public void setNotifiable(String characteristicUUID, boolean notifiable) {
+            if (notifiable) {
+                getOrCreateCharacteristic(characteristicUUID).addProperty(BluetoothGattCharacteristic.PROPERTY_NOTIFY);
+            }
+        }
+        @Override
+        public void setIndicatable(String characteristicUUID, boolean indicatable) {
+            if (indicatable) {
+                getOrCreateCharacteristic(characteristicUUID).addProperty(BluetoothGattCharacteristic.PROPERTY_INDICATE);
+            }
+        }
+        @Override
+        public void setAlwaysNotify(String characteristicUUID, boolean always) {
+            getOrCreateCharacteristic(characteristicUUID).setAlwaysNotify(always);
+        }
+        @Override
+        public void setFramedNotification(String characteristicUUID, boolean framed) {
+            getOrCreateCharacteristic(characteristicUUID).setFramedNotification(framed);
+        }
+        @Override
+        public void setMaxNotifyRate(String characteristicUUID, int perSecond) {
+            getOrCreateCharacteristic(characteristicUUID).setMaxNotifyRate(perSecond);
+        }
+        @Override
+        public void setReadCache(String characteristicUUID, int maxAgeMillis, boolean invalidateOnUpdate) {
+            getOrCreateCharacteristic(characteristicUUID).setReadCache(maxAgeMillis, invalidateOnUpdate);
+        }
+        @Override
+        public void setResponseNeeded(String characteristicUUID, boolean responseNeeded) {
+            MouthPieceCharacteristic ch = getOrCreateCharacteristic(characteristicUUID);
+            if (responseNeeded) {
+                ch.removeProperty(BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE);
+            } else {
+                ch.removeProperty(BluetoothGattCharacteristic.PROPERTY_WRITE);
+            }
+        }
+    };
+
+    @SuppressWarnings("unchecked")
     void analyzeCharacteristicsDefinition() {
         init();
+        MouthPieceDispatcher<MouthPieceService> dispatcher =
+                (MouthPieceDispatcher<MouthPieceService>)findDispatcher(getClass());
+        if (dispatcher != NO_DISPATCHER) {
+            dispatcher.register(this, registry);
+        } else {
+            analyzeByReflection();
+        }
+    }
+
+    private static MouthPieceDispatcher<?> findDispatcher(Class<?> serviceClass) {
+        synchronized (dispatchers) {
+            MouthPieceDispatcher<?> dispatcher = dispatchers.get(serviceClass);
+            if (dispatcher == null) {
+                dispatcher = loadDispatcher(serviceClass);
+                dispatchers.put(serviceClass, dispatcher);
+            }
+            return dispatcher;
+        }
+    }
+
+    private static MouthPieceDispatcher<?> loadDispatcher(Class<?> serviceClass) {
+        // a subclass without annotated methods of its own uses the dispatcher of its parent,
+        // one with its own handlers would lose them there, so it goes through reflection
+        for (Class<?> c = serviceClass; c != null && c != MouthPieceService.class; c = c.getSuperclass()) {
+            try {
+                Class<?> generated = Class.forName(c.getName() + MouthPieceDispatcher.SUFFIX,
+                        true, c.getClassLoader());
+                return (MouthPieceDispatcher<?>)generated.getDeclaredConstructor().newInstance();
+            } catch (ClassNotFoundException e) {
+                if (declaresHandlers(c)) {
+                    break;
+                }
+                // not processed, try the parent
+            } catch (InstantiationException e) {
+                throw new InvalidConfigurationException("Failed to create dispatcher for " + c.getName());
+            } catch (IllegalAccessException e) {
+                throw new InvalidConfigurationException("Failed to create dispatcher for " + c.getName());
+            } catch (NoSuchMethodException e) {
+                throw new InvalidConfigurationException("Failed to create dispatcher for " + c.getName());
+            } catch (InvocationTargetException e) {
+                throw new InvalidConfigurationException("Failed to create dispatcher for " + c.getName());
+            }
+        }
+        Log.d(TAG, "no generated dispatcher, use reflection: " + serviceClass.getName());
+        return NO_DISPATCHER;
+    }
+
+    private static boolean declaresHandlers(Class<?> c) {
+        for (Method method : c.getDeclaredMethods()) {
+            if (method.isAnnotationPresent(OnRead.class) || method.isAnnotationPresent(OnWrite.class)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void analyzeByReflection() {
         Method[] methods = getClass().getMethods();
         for (Method method : methods) {
             OnRead readAnnotation = method.getAnnotation(OnRead.class);
             if (readAnnotation != null) {
                 Log.d(TAG, "found a method set @OnRead");
                 if (validReadHandler(method)) {
-                    MouthPieceCharacteristic ch = getOrCreateCharacteristic(readAnnotation.value());
-                    ch.addHandler(MouthPiecePeripheral.Event.READ, method);
-                    ch.addProperty(BluetoothGattCharacteristic.PROPERTY_READ);
-                    ch.addPermission(BluetoothGattCharacteristic.PERMISSION_READ);
+                    registry.addReadHandler(readAnnotation.value(), new ReflectiveHandler(this, method));
                     Notifiable notifiable = method.getAnnotation(Notifiable.class);
-                    if (notifiable != null && notifiable.value()) {
-                        ch.addProperty(BluetoothGattCharacteristic.PROPERTY_NOTIFY);
+                    if (notifiable != null) {
+                        registry.setNotifiable(readAnnotation.value(), notifiable.value());
+                        registry.setIndicatable(readAnnotation.value(), notifiable.indicate());
+                        registry.setAlwaysNotify(readAnnotation.value(), notifiable.always());
+                        registry.setFramedNotification(readAnnotation.value(), notifiable.framed());
+                    }
+                    MaxNotifyRate maxNotifyRate = method.getAnnotation(MaxNotifyRate.class);
+                    if (maxNotifyRate != null) {
+                        registry.setMaxNotifyRate(readAnnotation.value(), maxNotifyRate.value());
+                    }
+                    ReadCache readCache = method.getAnnotation(ReadCache.class);
+                    if (readCache != null) {
+                        registry.setReadCache(readAnnotation.value(),
+                                readCache.maxAgeMillis(), readCache.invalidateOnUpdate());
                     }
                 } else {
                     throw new InvalidConfigurationException("Method definition is invalid for @OnRead annotation");
@@ -155,20 +287,23 @@ public abstract class MouthPieceService {
             OnWrite writeAnnotation = method.getAnnotation(OnWrite.class);
             if (writeAnnotation != null) {
                 Log.d(TAG, "found a method set @OnWrite");
-                if (validWriteHandler(method)) {
-                    MouthPieceCharacteristic ch = getOrCreateCharacteristic(writeAnnotation.value());
-                    ch.addHandler(MouthPiecePeripheral.Event.WRITE, method);
-                    ch.addPermission(BluetoothGattCharacteristic.PERMISSION_WRITE);
+                Batch batch = method.getAnnotation(Batch.class);
+                if (batch != null && (batch.size() <= 0 || batch.maxDelayMillis() < 0)) {
+                    throw new InvalidConfigurationException(
+                            "@Batch needs size greater than 0 and maxDelayMillis not less than 0");
+                }
+                if (batch != null && validBatchWriteHandler(method)) {
+                    registry.addBatchWriteHandler(writeAnnotation.value(), new ReflectiveHandler(this, method),
+                            batch.size(), batch.maxDelayMillis());
                     ResponseNeeded responseNeeded = method.getAnnotation(ResponseNeeded.class);
                     if (responseNeeded != null) {
-                        if (responseNeeded.value()) {
-                            ch.addProperty(BluetoothGattCharacteristic.PROPERTY_WRITE);
-                        } else {
-                            ch.addProperty(BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE);
-                        }
-                    } else {
-                        ch.addProperty(BluetoothGattCharacteristic.PROPERTY_WRITE);
-                        ch.addProperty(BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE);
+                        registry.setResponseNeeded(writeAnnotation.value(), responseNeeded.value());
+                    }
+                } else if (batch == null && validWriteHandler(method)) {
+                    registry.addWriteHandler(writeAnnotation.value(), new ReflectiveHandler(this, method));
+                    ResponseNeeded responseNeeded = method.getAnnotation(ResponseNeeded.class);
+                    if (responseNeeded != null) {
+                        registry.setResponseNeeded(writeAnnotation.value(), responseNeeded.value());
                     }
                 } else {
                     throw new InvalidConfigurationException("Method definition is invalid for @OnWrite annotation");
@@ -178,6 +313,42 @@ public abstract class MouthPieceService {
         }
     }
 
+    private static class ReflectiveHandler implements ReadHandler, WriteHandler, BatchWriteHandler {
+
+        private MouthPieceService service;
+        private Method method;
+
+        ReflectiveHandler(MouthPieceService service, Method method) {
+            this.service = service;
+            this.method = method;
+        }
+
+        @Override
+        public void onRead(ReadRequest req, ReadResponse res) {
+            invoke(req, res);
+        }
+
+        @Override
+        public void onWrite(WriteRequest req, WriteResponse res) {
+            invoke(req, res);
+        }
+
+        @Override
+        public void onWrite(WriteBatch batch) {
+            invoke(batch);
+        }
+
+        private void invoke(Object... args) {
+            try {
+                method.invoke(service, args);
+            } catch (IllegalAccessException e) {
+                e.printStackTrace();
+            } catch (InvocationTargetException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
     private MouthPieceCharacteristic getOrCreateCharacteristic(String uuidString) {
         UUID uuid = UUID.fromString(uuidString);
         if (!this.characteristics.containsKey(uuid))
@@ -192,6 +363,11 @@ public abstract class MouthPieceService {
         return (argTypes[0].equals(ReadRequest.class) && argTypes[1].equals(ReadResponse.class));
     }
 
+    private boolean validBatchWriteHandler(Method method) {
+        Class<?>[] argTypes = method.getParameterTypes();
+        return (argTypes.length == 1 && argTypes[0].equals(WriteBatch.class));
+    }
+
     public boolean validWriteHandler(Method method) {
         Class<?>[] argTypes = method.getParameterTypes();
         if (argTypes.length != 2)
@@ -0,0 +1,292 @@
+/*
+* Copyright 2015 Lyo Kato (lyo.kato@gmail.com)
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package mouthpiece.peripheral;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattServer;
+import android.bluetooth.BluetoothStatusCodes;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import mouthpiece.utils.Fragmenter;
+
+/**
+ * Sends notifications to each device one at a time.
+ *
+ * The stack drops a notification while the previous one for the device
+ * is waiting for onNotificationSent, so the next one is sent from there.
+ * While waiting, a device keeps only which characteristics have changed,
+ * and each of them is sent with its value at that moment. A fast changing
+ * value is coalesced into the latest one, and the queue of a device never
+ * grows beyond the number of its notifiable characteristics.
+ *
+ * A framed characteristic is sent as mouthpiece.utils.Fragmenter fragments
+ * sized to the MTU of each device, one notification per fragment. Before API 33
+ * the stack only sends the value a characteristic holds, so a fragment is put
+ * there while it is sent, under the lock of the characteristic. Everything here
+ * reading or writing the value of a raw characteristic takes that lock.
+ *
+ * When a device enabled indications for a characteristic, its values are sent
+ * with confirm=true. onNotificationSent then comes with the confirmation, so the
+ * next value waits for it, and a value the device did not confirm is sent again.
+ */
+class Notifier {
+
+    private static final String TAG = Notifier.class.getSimpleName();
+
+    // when the stack refuses to send, try again after this
+    private static final int RETRY_DELAY_MILLIS = 20;
+
+    static final int DEFAULT_MTU = 23;
+    private static final int ATT_HEADER_SIZE = 3;
+    // no attribute value may be longer, whatever the MTU
+    private static final int MAX_ATTRIBUTE_LENGTH = 512;
+
+    // an unconfirmed indication is sent again up to this many times
+    private static final int MAX_INDICATION_RETRIES = 3;
+
+    private static class DeviceQueue {
+        final BluetoothDevice device;
+        // changed characteristic -> framed or not
+        final LinkedHashMap<BluetoothGattCharacteristic, Boolean> changed =
+                new LinkedHashMap<BluetoothGattCharacteristic, Boolean>();
+        boolean inFlight = false;
+        int mtu = DEFAULT_MTU;
+        // characteristics this device enabled indications for
+        final Set<BluetoothGattCharacteristic> indicated = new HashSet<BluetoothGattCharacteristic>();
+
+        // the last one sent, to send again when its indication is not confirmed
+        BluetoothGattCharacteristic lastSent;
+        boolean lastSentFramed;
+        int indicationRetries = 0;
+
+        // the value being sent in fragments
+        BluetoothGattCharacteristic fragmentedCharacteristic;
+        List<byte[]> fragments;
+        int nextFragment;
+
+        DeviceQueue(BluetoothDevice device) {
+            this.device = device;
+        }
+    }
+
+    private BluetoothGattServer server;
+    private Handler handler = new Handler(Looper.getMainLooper());
+    // device address -> queue
+    private Map<String, DeviceQueue> queues = new HashMap<String, DeviceQueue>();
+    private boolean closed = false;
+
+    Notifier(BluetoothGattServer server) {
+        this.server = server;
+    }
+
+    void enqueue(BluetoothDevice[] devices, BluetoothGattCharacteristic ch, boolean framed) {
+        for (BluetoothDevice device : devices) {
+            enqueue(device, ch, framed);
+        }
+    }
+
+    synchronized void enqueue(BluetoothDevice device, BluetoothGattCharacteristic ch, boolean framed) {
+        if (closed) {
+            return;
+        }
+        DeviceQueue queue = getOrCreateQueue(device);
+        queue.changed.put(ch, framed);
+        if (!queue.inFlight) {
+            sendNext(queue);
+        }
+    }
+
+    synchronized void setMtu(BluetoothDevice device, int mtu) {
+        if (closed) {
+            return;
+        }
+        getOrCreateQueue(device).mtu = mtu;
+    }
+
+    synchronized void setIndication(BluetoothDevice device, BluetoothGattCharacteristic ch, boolean enabled) {
+        if (closed) {
+            return;
+        }
+        DeviceQueue queue = getOrCreateQueue(device);
+        if (enabled) {
+            queue.indicated.add(ch);
+        } else {
+            queue.indicated.remove(ch);
+        }
+    }
+
+    synchronized int getMtu(BluetoothDevice device) {
+        DeviceQueue queue = queues.get(device.getAddress());
+        return (queue != null) ? queue.mtu : DEFAULT_MTU;
+    }
+
+    private DeviceQueue getOrCreateQueue(BluetoothDevice device) {
+        DeviceQueue queue = queues.get(device.getAddress());
+        if (queue == null) {
+            queue = new DeviceQueue(device);
+            queues.put(device.getAddress(), queue);
+        }
+        return queue;
+    }
+
+    synchronized void onNotificationSent(BluetoothDevice device, int status) {
+        DeviceQueue queue = queues.get(device.getAddress());
+        if (queue == null) {
+            return;
+        }
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            Log.w(TAG, "notification failed: " + status);
+            if (queue.lastSent != null && queue.indicated.contains(queue.lastSent)
+                    && queue.indicationRetries < MAX_INDICATION_RETRIES) {
+                queue.indicationRetries++;
+                resend(queue);
+            }
+        } else {
+            queue.indicationRetries = 0;
+        }
+        queue.inFlight = false;
+        sendNext(queue);
+    }
+
+    synchronized void forget(BluetoothDevice device) {
+        queues.remove(device.getAddress());
+    }
+
+    synchronized void close() {
+        closed = true;
+        queues.clear();
+        handler.removeCallbacksAndMessages(null);
+    }
+
+    private void sendNext(DeviceQueue queue) {
+        if (queue.fragments == null) {
+            Iterator<Map.Entry<BluetoothGattCharacteristic, Boolean>> it = queue.changed.entrySet().iterator();
+            if (!it.hasNext()) {
+                return;
+            }
+            Map.Entry<BluetoothGattCharacteristic, Boolean> next = it.next();
+            BluetoothGattCharacteristic ch = next.getKey();
+            if (!next.getValue()) {
+                boolean sent;
+                synchronized (ch) {
+                    sent = server.notifyCharacteristicChanged(queue.device, ch, queue.indicated.contains(ch));
+                }
+                if (sent) {
+                    it.remove();
+                    queue.inFlight = true;
+                    queue.lastSent = ch;
+                    queue.lastSentFramed = false;
+                } else {
+                    // keep it at the head and wait until the stack can take it
+                    retryLater(queue);
+                }
+                return;
+            }
+            it.remove();
+            byte[] value;
+            synchronized (ch) {
+                value = ch.getValue();
+            }
+            queue.fragmentedCharacteristic = ch;
+            queue.fragments = Fragmenter.split((value != null) ? value : new byte[0],
+                    Math.min(queue.mtu - ATT_HEADER_SIZE, MAX_ATTRIBUTE_LENGTH));
+            queue.nextFragment = 0;
+        }
+        sendFragment(queue);
+    }
+
+    private void sendFragment(DeviceQueue queue) {
+        BluetoothGattCharacteristic ch = queue.fragmentedCharacteristic;
+        byte[] fragment = queue.fragments.get(queue.nextFragment);
+        boolean confirm = queue.indicated.contains(ch);
+        boolean sent;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            sent = notifyValue(queue.device, ch, confirm, fragment);
+        } else {
+            // the stack sends the value the characteristic has, so put the fragment there for a moment
+            synchronized (ch) {
+                byte[] value = ch.getValue();
+                ch.setValue(fragment);
+                sent = server.notifyCharacteristicChanged(queue.device, ch, confirm);
+                ch.setValue(value);
+            }
+        }
+        if (!sent) {
+            retryLater(queue);
+            return;
+        }
+        queue.inFlight = true;
+        queue.lastSent = ch;
+        queue.lastSentFramed = true;
+        queue.nextFragment++;
+        if (queue.nextFragment == queue.fragments.size()) {
+            queue.fragmentedCharacteristic = null;
+            queue.fragments = null;
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.TIRAMISU)
+    private boolean notifyValue(BluetoothDevice device, BluetoothGattCharacteristic ch,
+            boolean confirm, byte[] value) {
+        return server.notifyCharacteristicChanged(device, ch, confirm, value) == BluetoothStatusCodes.SUCCESS;
+    }
+
+    /**
+     * Sends the last value again. A framed value starts over from its
+     * first fragment, as the central drops a broken sequence anyway.
+     */
+    private void resend(DeviceQueue queue) {
+        BluetoothGattCharacteristic ch = queue.lastSent;
+        if (queue.fragmentedCharacteristic == ch) {
+            queue.fragmentedCharacteristic = null;
+            queue.fragments = null;
+        }
+        if (!queue.changed.containsKey(ch)) {
+            queue.changed.put(ch, queue.lastSentFramed);
+        }
+    }
+
+    private void retryLater(final DeviceQueue queue) {
+        queue.inFlight = true;
+        handler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (Notifier.this) {
+                    if (closed || queues.get(queue.device.getAddress()) != queue) {
+                        return;
+                    }
+                    queue.inFlight = false;
+                    sendNext(queue);
+                }
+            }
+        }, RETRY_DELAY_MILLIS);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+* Copyright 2015 Lyo Kato (lyo.kato@gmail.com)
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package mouthpiece.peripheral;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Sends the notifications of a characteristic at most once per interval.
+ *
+ * A change inside the interval schedules one flush at its end, and the
+ * following changes only replace what the flush sends. The notifier sends
+ * the value at that moment, so the latest value always wins.
+ */
+class NotifyRateLimiter {
+
+    private static Handler handler = new Handler(Looper.getMainLooper());
+
+    private final MouthPieceCharacteristic characteristic;
+    private final long intervalMillis;
+
+    private long lastSentAt = 0;
+    private boolean pending = false;
+    private Notifier pendingNotifier;
+    private BluetoothGattCharacteristic pendingCharacteristic;
+
+    NotifyRateLimiter(MouthPieceCharacteristic characteristic, long intervalMillis) {
+        this.characteristic = characteristic;
+        this.intervalMillis = intervalMillis;
+    }
+
+    synchronized void offer(Notifier notifier, BluetoothGattCharacteristic rawCh) {
+        if (pending) {
+            pendingNotifier = notifier;
+            pendingCharacteristic = rawCh;
+            characteristic.onCoalesced();
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        if (lastSentAt == 0 || now - lastSentAt >= intervalMillis) {
+            lastSentAt = now;
+            characteristic.sendNotification(notifier, rawCh);
+            return;
+        }
+        pending = true;
+        pendingNotifier = notifier;
+        pendingCharacteristic = rawCh;
+        handler.postAtTime(flushTask, lastSentAt + intervalMillis);
+    }
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            Notifier notifier;
+            BluetoothGattCharacteristic rawCh;
+            synchronized (NotifyRateLimiter.this) {
+                if (!pending) {
+                    return;
+                }
+                pending = false;
+                lastSentAt = SystemClock.uptimeMillis();
+                notifier = pendingNotifier;
+                rawCh = pendingCharacteristic;
+                pendingNotifier = null;
+                pendingCharacteristic = null;
+            }
+            characteristic.sendNotification(notifier, rawCh);
+        }
+    };
+}
@@ -0,0 +1,156 @@
+/*
+* Copyright 2015 Lyo Kato (lyo.kato@gmail.com)
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package mouthpiece.peripheral;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.util.LongSparseArray;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import mouthpiece.utils.ValueTypeConverter;
+
+/**
+ * Parts of long writes waiting for onExecuteWrite, per device and characteristic.
+ * The parts are put together in buffers taken from a pool.
+ */
+class PreparedWrites {
+
+    // the longest value of an attribute
+    static final int MAX_VALUE_LENGTH = 512;
+    private static final int MAX_POOLED_BUFFERS = 16;
+
+    static class Write {
+        final BluetoothGattCharacteristic characteristic;
+        final byte[] value;
+
+        Write(BluetoothGattCharacteristic characteristic, byte[] value) {
+            this.characteristic = characteristic;
+            this.value = value;
+        }
+    }
+
+    /**
+     * A value put together from parts. The data comes from the pool and still
+     * holds an earlier upload, so a part may only start within what is written.
+     */
+    static class Buffer {
+        final byte[] data;
+        int length = 0;
+
+        Buffer(byte[] data) {
+            this.data = data;
+        }
+
+        int append(int offset, byte[] value) {
+            int length = (value != null) ? value.length : 0;
+            if (offset < 0 || offset > this.length) {
+                return BluetoothGatt.GATT_INVALID_OFFSET;
+            }
+            if (offset + length > data.length) {
+                return BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
+            }
+            if (length > 0) {
+                System.arraycopy(value, 0, data, offset, length);
+            }
+            this.length = Math.max(this.length, offset + length);
+            return BluetoothGatt.GATT_SUCCESS;
+        }
+
+        byte[] toByteArray() {
+            byte[] value = new byte[length];
+            System.arraycopy(data, 0, value, 0, length);
+            return value;
+        }
+    }
+
+    private final BufferPool pool = new BufferPool(MAX_VALUE_LENGTH, MAX_POOLED_BUFFERS);
+    // device address -> characteristic -> buffer
+    private final LongSparseArray<Map<BluetoothGattCharacteristic, Buffer>> writes =
+            new LongSparseArray<Map<BluetoothGattCharacteristic, Buffer>>();
+
+    /**
+     * Returns the status for the response to the prepared write.
+     */
+    synchronized int append(BluetoothDevice device, BluetoothGattCharacteristic ch, int offset, byte[] value) {
+        long key = ValueTypeConverter.longFromAddress(device.getAddress());
+        Map<BluetoothGattCharacteristic, Buffer> map = writes.get(key);
+        Buffer buffer = (map != null) ? map.get(ch) : null;
+        if (buffer == null) {
+            // the first part of a value starts it
+            if (offset != 0) {
+                return BluetoothGatt.GATT_INVALID_OFFSET;
+            }
+            if (value != null && value.length > MAX_VALUE_LENGTH) {
+                return BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
+            }
+            if (map == null) {
+                map = new LinkedHashMap<BluetoothGattCharacteristic, Buffer>();
+                writes.put(key, map);
+            }
+            buffer = new Buffer(pool.acquire());
+            map.put(ch, buffer);
+        }
+        return buffer.append(offset, value);
+    }
+
+    /**
+     * Removes the writes of the device and returns them put together, in the order they began.
+     */
+    synchronized List<Write> take(BluetoothDevice device) {
+        long key = ValueTypeConverter.longFromAddress(device.getAddress());
+        Map<BluetoothGattCharacteristic, Buffer> map = writes.get(key);
+        if (map == null) {
+            return Collections.emptyList();
+        }
+        writes.remove(key);
+        List<Write> result = new ArrayList<Write>(map.size());
+        for (Map.Entry<BluetoothGattCharacteristic, Buffer> e : map.entrySet()) {
+            Buffer buffer = e.getValue();
+            result.add(new Write(e.getKey(), buffer.toByteArray()));
+            pool.release(buffer.data);
+        }
+        return result;
+    }
+
+    synchronized void discard(BluetoothDevice device) {
+        long key = ValueTypeConverter.longFromAddress(device.getAddress());
+        Map<BluetoothGattCharacteristic, Buffer> map = writes.get(key);
+        if (map != null) {
+            writes.remove(key);
+            release(map);
+        }
+    }
+
+    synchronized void clear() {
+        for (int i = 0; i < writes.size(); i++) {
+            release(writes.valueAt(i));
+        }
+        writes.clear();
+    }
+
+    private void release(Map<BluetoothGattCharacteristic, Buffer> map) {
+        for (Buffer buffer : map.values()) {
+            pool.release(buffer.data);
+        }
+    }
+}
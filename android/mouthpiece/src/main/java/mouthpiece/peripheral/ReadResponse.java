@@ -17,6 +17,7 @@
 package mouthpiece.peripheral;
 
 import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattServer;
 
 import mouthpiece.utils.ValueTypeConverter;
@@ -25,9 +26,24 @@ public class ReadResponse {
 
     private ReadRequest req;
     private int status;
+    private MouthPieceCharacteristic characteristic;
+
+    private BluetoothGattServer server;
+    private boolean deferred = false;
+    private boolean completed = false;
+    private boolean sent = false;
+
+    private ReadSnapshots snapshots;
+    // answered instead of the value of the characteristic
+    private byte[] cachedValue;
 
     ReadResponse(ReadRequest req) {
+        this(req, null);
+    }
+
+    ReadResponse(ReadRequest req, ReadSnapshots snapshots) {
         this.req = req;
+        this.snapshots = snapshots;
         this.status = BluetoothGatt.GATT_SUCCESS;
     }
 
@@ -35,19 +51,99 @@ public class ReadResponse {
         this.status = status;
     }
 
+    int getStatus() {
+        return status;
+    }
+
+    void setCharacteristic(MouthPieceCharacteristic characteristic) {
+        this.characteristic = characteristic;
+    }
+
     public void write(byte[] value) {
-        req.getCharacteristic().setValue(value);
+        if (characteristic != null) {
+            characteristic.setValue(req.getCharacteristic(), value);
+        } else {
+            // the notifier may put a fragment there for a moment
+            BluetoothGattCharacteristic rawCh = req.getCharacteristic();
+            synchronized (rawCh) {
+                rawCh.setValue(value);
+            }
+        }
     }
     public void writeInt(int value) { write(ValueTypeConverter.bytesFromInt(value)); }
 
+    /**
+     * Keeps the response from being sent when the handler returns.
+     * Call complete() when the value is ready, from any thread.
+     */
+    public synchronized void defer() {
+        this.deferred = true;
+    }
+
+    synchronized boolean isDeferred() {
+        return deferred;
+    }
+
+    void setCachedValue(byte[] value) {
+        this.cachedValue = value;
+    }
+
+    public void complete() {
+        BluetoothGattServer target;
+        synchronized (this) {
+            completed = true;
+            if (server == null || sent) {
+                return;
+            }
+            sent = true;
+            target = server;
+        }
+        send(target);
+    }
+
     void finishOn(BluetoothGattServer server) {
+        synchronized (this) {
+            this.server = server;
+            if ((deferred && !completed) || sent) {
+                return;
+            }
+            sent = true;
+        }
+        send(server);
+    }
 
+    private void send(BluetoothGattServer server) {
         if (this.status == BluetoothGatt.GATT_FAILURE) {
             server.sendResponse(req.getDevice(), req.getRequestId(), this.status,
                     0, null);
         } else {
-            server.sendResponse(req.getDevice(), req.getRequestId(), this.status,
-                    req.getOffset(), req.getCharacteristic().getValue());
+            byte[] value = (cachedValue != null) ? cachedValue
+                    : MouthPieceCharacteristic.getValue(req.getCharacteristic());
+            if (snapshots != null && req.getOffset() == 0) {
+                snapshots.put(req.getDevice(), req.getCharacteristic(), value);
+            }
+            sendPart(server, req, this.status, value);
+        }
+    }
+
+    /**
+     * Sends the value from the offset of the request.
+     */
+    static void sendPart(BluetoothGattServer server, ReadRequest req, int status, byte[] value) {
+        int offset = req.getOffset();
+        if (value == null) {
+            value = new byte[0];
+        }
+        if (offset > value.length) {
+            server.sendResponse(req.getDevice(), req.getRequestId(),
+                    BluetoothGatt.GATT_INVALID_OFFSET, offset, null);
+            return;
+        }
+        byte[] part = value;
+        if (offset > 0) {
+            part = new byte[value.length - offset];
+            System.arraycopy(value, offset, part, 0, part.length);
         }
+        server.sendResponse(req.getDevice(), req.getRequestId(), status, offset, part);
     }
 }
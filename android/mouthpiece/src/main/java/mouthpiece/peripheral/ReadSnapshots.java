@@ -0,0 +1,108 @@
+/*
+* Copyright 2015 Lyo Kato (lyo.kato@gmail.com)
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package mouthpiece.peripheral;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.SystemClock;
+import android.util.LongSparseArray;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import mouthpiece.utils.ValueTypeConverter;
+
+/**
+ * The value each device got for a read at offset 0, kept for a while.
+ *
+ * A value longer than one response is read with more requests with
+ * increasing offsets. Those are served from this snapshot, so the handler
+ * runs once per value and all the parts come from the same value.
+ */
+class ReadSnapshots {
+
+    // values up to this size fit in the first response with the default MTU
+    static final int MIN_SNAPSHOT_SIZE = 23 - 1;
+
+    private static class Snapshot {
+        final byte[] value;
+        final long takenAt;
+
+        Snapshot(byte[] value, long takenAt) {
+            this.value = value;
+            this.takenAt = takenAt;
+        }
+    }
+
+    // device address -> characteristic -> snapshot
+    private final LongSparseArray<Map<BluetoothGattCharacteristic, Snapshot>> snapshots =
+            new LongSparseArray<Map<BluetoothGattCharacteristic, Snapshot>>();
+    private volatile long ttlMillis;
+
+    ReadSnapshots(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    void setTtlMillis(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    synchronized void put(BluetoothDevice device, BluetoothGattCharacteristic ch, byte[] value) {
+        long key = ValueTypeConverter.longFromAddress(device.getAddress());
+        Map<BluetoothGattCharacteristic, Snapshot> map = snapshots.get(key);
+        if (value == null || value.length <= MIN_SNAPSHOT_SIZE) {
+            if (map != null) {
+                map.remove(ch);
+            }
+            return;
+        }
+        if (map == null) {
+            map = new HashMap<BluetoothGattCharacteristic, Snapshot>();
+            snapshots.put(key, map);
+        }
+        // the value may be modified in place later
+        map.put(ch, new Snapshot(value.clone(), SystemClock.uptimeMillis()));
+    }
+
+    /**
+     * Returns null when there is no snapshot or it has expired.
+     */
+    synchronized byte[] get(BluetoothDevice device, BluetoothGattCharacteristic ch) {
+        Map<BluetoothGattCharacteristic, Snapshot> map =
+                snapshots.get(ValueTypeConverter.longFromAddress(device.getAddress()));
+        if (map == null) {
+            return null;
+        }
+        Snapshot snapshot = map.get(ch);
+        if (snapshot == null) {
+            return null;
+        }
+        if (SystemClock.uptimeMillis() - snapshot.takenAt > ttlMillis) {
+            map.remove(ch);
+            return null;
+        }
+        return snapshot.value;
+    }
+
+    synchronized void remove(BluetoothDevice device) {
+        snapshots.remove(ValueTypeConverter.longFromAddress(device.getAddress()));
+    }
+
+    synchronized void clear() {
+        snapshots.clear();
+    }
+}
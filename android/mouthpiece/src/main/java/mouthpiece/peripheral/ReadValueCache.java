@@ -0,0 +1,70 @@
+/*
+* Copyright 2015 Lyo Kato (lyo.kato@gmail.com)
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package mouthpiece.peripheral;
+
+import android.os.SystemClock;
+
+/**
+ * The value made by the read handler last time, answered to
+ * the following reads until it gets old or the value is updated.
+ */
+class ReadValueCache {
+
+    private final long maxAgeMillis;
+    private final boolean invalidateOnUpdate;
+
+    private byte[] value;
+    private long version;
+    private long cachedAt;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    ReadValueCache(long maxAgeMillis, boolean invalidateOnUpdate) {
+        this.maxAgeMillis = maxAgeMillis;
+        this.invalidateOnUpdate = invalidateOnUpdate;
+    }
+
+    /**
+     * Returns null and counts a miss when the handler has to run.
+     */
+    synchronized byte[] get(long currentVersion) {
+        if (value != null
+                && SystemClock.uptimeMillis() - cachedAt <= maxAgeMillis
+                && (!invalidateOnUpdate || version == currentVersion)) {
+            hits++;
+            return value;
+        }
+        misses++;
+        return null;
+    }
+
+    synchronized void put(byte[] value, long version) {
+        // the value may be modified in place later
+        this.value = (value != null) ? value.clone() : null;
+        this.version = version;
+        this.cachedAt = SystemClock.uptimeMillis();
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+}
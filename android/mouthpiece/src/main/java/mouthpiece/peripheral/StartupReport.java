@@ -0,0 +1,76 @@
+/*
+* Copyright 2015 Lyo Kato (lyo.kato@gmail.com)
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package mouthpiece.peripheral;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * How long each phase of MouthPiecePeripheral#start took.
+ */
+public class StartupReport {
+
+    private long openServerMillis;
+    // service uuid -> millis until onServiceAdded, in the order they were added
+    private final Map<UUID, Long> serviceMillis = new LinkedHashMap<UUID, Long>();
+    private long advertiseStartMillis;
+    private long totalMillis;
+
+    StartupReport() {
+    }
+
+    void setOpenServerMillis(long millis) {
+        this.openServerMillis = millis;
+    }
+
+    void addServiceMillis(UUID serviceUuid, long millis) {
+        serviceMillis.put(serviceUuid, millis);
+    }
+
+    void setAdvertiseStartMillis(long millis) {
+        this.advertiseStartMillis = millis;
+    }
+
+    void setTotalMillis(long millis) {
+        this.totalMillis = millis;
+    }
+
+    public long getOpenServerMillis() {
+        return openServerMillis;
+    }
+
+    public Map<UUID, Long> getServiceMillis() {
+        return Collections.unmodifiableMap(serviceMillis);
+    }
+
+    public long getAdvertiseStartMillis() {
+        return advertiseStartMillis;
+    }
+
+    public long getTotalMillis() {
+        return totalMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "StartupReport{openServer=" + openServerMillis + "ms, services=" + serviceMillis
+                + ", advertiseStart=" + advertiseStartMillis + "ms, total=" + totalMillis + "ms}";
+    }
+}
@@ -0,0 +1,43 @@
+/*
+* Copyright 2015 Lyo Kato (lyo.kato@gmail.com)
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package mouthpiece.peripheral;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.UUID;
+
+/**
+ * A central subscribing to notifications of a characteristic.
+ */
+public class Subscription {
+
+    private BluetoothDevice device;
+    private UUID serviceUuid;
+    private UUID characteristicUuid;
+    final MouthPieceCharacteristic characteristic;
+
+    Subscription(BluetoothDevice device, UUID serviceUuid, MouthPieceCharacteristic characteristic) {
+        this.device = device;
+        this.serviceUuid = serviceUuid;
+        this.characteristicUuid = characteristic.getUuid();
+        this.characteristic = characteristic;
+    }
+
+    public BluetoothDevice getDevice() { return device; }
+    public UUID getServiceUuid() { return serviceUuid; }
+    public UUID getCharacteristicUuid() { return characteristicUuid; }
+}
@@ -0,0 +1,107 @@
+/*
+* Copyright 2015 Lyo Kato (lyo.kato@gmail.com)
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package mouthpiece.peripheral;
+
+import android.bluetooth.BluetoothDevice;
+import android.util.LongSparseArray;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import mouthpiece.utils.ValueTypeConverter;
+
+/**
+ * Subscriptions of each device, keyed by its MAC address as a long,
+ * so a device is cleaned up by its own subscriptions only
+ * instead of walking every characteristic.
+ */
+class SubscriptionIndex {
+
+    private final LongSparseArray<List<Subscription>> subscriptions =
+            new LongSparseArray<List<Subscription>>();
+
+    /**
+     * Returns false if the device already subscribes to the characteristic.
+     */
+    synchronized boolean add(BluetoothDevice device, UUID serviceUuid, MouthPieceCharacteristic ch) {
+        long key = ValueTypeConverter.longFromAddress(device.getAddress());
+        List<Subscription> list = subscriptions.get(key);
+        if (list == null) {
+            list = new ArrayList<Subscription>();
+            subscriptions.put(key, list);
+        }
+        for (Subscription s : list) {
+            if (s.characteristic == ch) {
+                return false;
+            }
+        }
+        list.add(new Subscription(device, serviceUuid, ch));
+        return true;
+    }
+
+    synchronized boolean remove(BluetoothDevice device, MouthPieceCharacteristic ch) {
+        long key = ValueTypeConverter.longFromAddress(device.getAddress());
+        List<Subscription> list = subscriptions.get(key);
+        if (list == null) {
+            return false;
+        }
+        for (int i = 0; i < list.size(); i++) {
+            if (list.get(i).characteristic == ch) {
+                list.remove(i);
+                if (list.isEmpty()) {
+                    subscriptions.remove(key);
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized List<Subscription> removeAll(BluetoothDevice device) {
+        long key = ValueTypeConverter.longFromAddress(device.getAddress());
+        List<Subscription> list = subscriptions.get(key);
+        if (list == null) {
+            return Collections.emptyList();
+        }
+        subscriptions.remove(key);
+        return list;
+    }
+
+    synchronized List<Subscription> clear() {
+        List<Subscription> all = getAll();
+        subscriptions.clear();
+        return all;
+    }
+
+    synchronized List<Subscription> get(BluetoothDevice device) {
+        List<Subscription> list = subscriptions.get(ValueTypeConverter.longFromAddress(device.getAddress()));
+        if (list == null) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<Subscription>(list);
+    }
+
+    synchronized List<Subscription> getAll() {
+        List<Subscription> all = new ArrayList<Subscription>();
+        for (int i = 0; i < subscriptions.size(); i++) {
+            all.addAll(subscriptions.valueAt(i));
+        }
+        return all;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+* Copyright 2015 Lyo Kato (lyo.kato@gmail.com)
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package mouthpiece.peripheral;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.UUID;
+
+/**
+ * Writes to a characteristic in the order they arrived.
+ * Valid only while the handler runs, the arrays are reused for the next batch.
+ */
+public class WriteBatch {
+
+    private final UUID uuid;
+    private BluetoothDevice[] devices;
+    private byte[][] values;
+    private int size = 0;
+
+    WriteBatch(UUID uuid, int capacity) {
+        this.uuid = uuid;
+        this.devices = new BluetoothDevice[capacity];
+        this.values = new byte[capacity][];
+    }
+
+    public UUID getUuid() { return uuid; }
+    public int size() { return size; }
+    public boolean isEmpty() { return size == 0; }
+
+    public BluetoothDevice getDevice(int index) {
+        checkIndex(index);
+        return devices[index];
+    }
+
+    public byte[] getValue(int index) {
+        checkIndex(index);
+        return values[index];
+    }
+
+    void add(BluetoothDevice device, byte[] value) {
+        if (size == devices.length) {
+            int capacity = devices.length * 2;
+            BluetoothDevice[] newDevices = new BluetoothDevice[capacity];
+            byte[][] newValues = new byte[capacity][];
+            System.arraycopy(devices, 0, newDevices, 0, size);
+            System.arraycopy(values, 0, newValues, 0, size);
+            devices = newDevices;
+            values = newValues;
+        }
+        devices[size] = device;
+        values[size] = value;
+        size++;
+    }
+
+    void clear() {
+        for (int i = 0; i < size; i++) {
+            devices[i] = null;
+            values[i] = null;
+        }
+        size = 0;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("index: " + index + ", size: " + size);
+    }
+}
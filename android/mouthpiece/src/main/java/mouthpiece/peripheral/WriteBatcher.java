@@ -0,0 +1,114 @@
+/*
+* Copyright 2015 Lyo Kato (lyo.kato@gmail.com)
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package mouthpiece.peripheral;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+/**
+ * Collects writes to a characteristic and delivers them to a BatchWriteHandler
+ * when 'size' writes are collected, or 'maxDelayMillis' after the first one.
+ *
+ * Two batches are used by turns: writes go into one while the other is
+ * being handled, so the binder thread only appends to an array.
+ * Deliveries run one at a time, on the handler executor of the peripheral
+ * if it is set, otherwise on the main thread.
+ */
+class WriteBatcher {
+
+    private static final String TAG = WriteBatcher.class.getSimpleName();
+
+    private static Handler handler = new Handler(Looper.getMainLooper());
+
+    private final BatchWriteHandler batchHandler;
+    private final int size;
+    private final int maxDelayMillis;
+
+    private WriteBatch filling;
+    private WriteBatch delivering;
+    private final Object deliveryLock = new Object();
+
+    private Executor executor;
+    private SerialExecutor serialExecutor;
+
+    WriteBatcher(UUID uuid, BatchWriteHandler batchHandler, int size, int maxDelayMillis) {
+        this.batchHandler = batchHandler;
+        this.size = size;
+        this.maxDelayMillis = maxDelayMillis;
+        this.filling = new WriteBatch(uuid, size);
+        this.delivering = new WriteBatch(uuid, size);
+    }
+
+    synchronized void offer(BluetoothDevice device, byte[] value, Executor executor) {
+        if (executor != this.executor) {
+            this.executor = executor;
+            this.serialExecutor = (executor != null) ? new SerialExecutor(executor) : null;
+        }
+        filling.add(device, value);
+        if (filling.size() == 1) {
+            handler.postDelayed(flushTask, maxDelayMillis);
+        }
+        if (filling.size() == size) {
+            handler.removeCallbacks(flushTask);
+            handler.post(flushTask);
+        }
+    }
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            SerialExecutor executor;
+            synchronized (WriteBatcher.this) {
+                executor = serialExecutor;
+            }
+            if (executor != null) {
+                executor.execute(deliverTask);
+            } else {
+                deliverTask.run();
+            }
+        }
+    };
+
+    private final Runnable deliverTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (deliveryLock) {
+                WriteBatch batch;
+                synchronized (WriteBatcher.this) {
+                    if (filling.isEmpty()) {
+                        return;
+                    }
+                    batch = filling;
+                    filling = delivering;
+                    delivering = batch;
+                }
+                try {
+                    batchHandler.onWrite(batch);
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "batch write handler failed", e);
+                } finally {
+                    batch.clear();
+                }
+            }
+        }
+    };
+}
@@ -21,19 +21,76 @@ import android.bluetooth.BluetoothGattServer;
 
 public class WriteResponse {
 
+    /**
+     * Told when the response of one write inside a larger request is finished.
+     */
+    interface Completion {
+        void onCompleted(WriteResponse res);
+    }
+
     private WriteRequest req;
     private int status;
+    private Completion completion;
+
+    private BluetoothGattServer server;
+    private boolean deferred = false;
+    private boolean completed = false;
+    private boolean sent = false;
 
     WriteResponse(WriteRequest req) {
         this.req = req;
         this.status = BluetoothGatt.GATT_SUCCESS;
     }
 
+    WriteResponse(WriteRequest req, Completion completion) {
+        this(req);
+        this.completion = completion;
+    }
+
     public void setStatus(int status) {
         this.status = status;
     }
 
+    int getStatus() {
+        return status;
+    }
+
+    /**
+     * Keeps the response from being sent when the handler returns.
+     * Call complete() when the write is processed, from any thread.
+     * Subscribers are notified of the changed value only when it was
+     * set before the handler returned, otherwise use updateValue.
+     * For a prepared write, the response to the execute request waits for it.
+     */
+    public synchronized void defer() {
+        this.deferred = true;
+    }
+
+    public void complete() {
+        BluetoothGattServer target;
+        synchronized (this) {
+            completed = true;
+            if (server == null || sent) {
+                return;
+            }
+            sent = true;
+            target = server;
+        }
+        send(target);
+    }
+
     void finishOn(BluetoothGattServer server) {
+        synchronized (this) {
+            this.server = server;
+            if ((deferred && !completed) || sent) {
+                return;
+            }
+            sent = true;
+        }
+        send(server);
+    }
+
+    private void send(BluetoothGattServer server) {
         if (req.getResponseNeeded()) {
             int offset = req.getOffset();
             if (this.status == BluetoothGatt.GATT_FAILURE)
@@ -41,5 +98,8 @@ public class WriteResponse {
             server.sendResponse(req.getDevice(), req.getRequestId(),
                     this.status, offset, null);
         }
+        if (completion != null) {
+            completion.onCompleted(this);
+        }
     }
 }
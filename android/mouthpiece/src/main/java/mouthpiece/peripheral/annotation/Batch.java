@@ -0,0 +1,19 @@
+package mouthpiece.peripheral.annotation;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * Put on an @OnWrite method taking (WriteBatch) to receive writes in batches.
+ * A batch is delivered when it has 'size' writes, or 'maxDelayMillis'
+ * after its first write.
+ */
+@Retention(RUNTIME)
+@Target(METHOD)
+public @interface Batch {
+    int size() default 32;
+    int maxDelayMillis() default 50;
+}
@@ -0,0 +1,17 @@
+package mouthpiece.peripheral.annotation;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * Notifications per second at most, put on the @OnRead method next to @Notifiable.
+ * Updates in between are conflated and only the latest value is sent.
+ */
+@Retention(RUNTIME)
+@Target(METHOD)
+public @interface MaxNotifyRate {
+    int value();
+}
@@ -10,4 +10,22 @@ import static java.lang.annotation.RetentionPolicy.RUNTIME;
 @Target(METHOD)
 public @interface Notifiable {
     boolean value();
+
+    /**
+     * Also allow indications. A central enabling them gets every value
+     * confirmed, and the next one is sent after the confirmation.
+     */
+    boolean indicate() default false;
+
+    /**
+     * Notify every update, even when the value repeats.
+     */
+    boolean always() default false;
+
+    /**
+     * Send values in mouthpiece.utils.Fragmenter fragments sized to the MTU of each central,
+     * so a value longer than one packet arrives complete.
+     * The central puts them together with Destination.Builder#setNotificationFramingEnabled(uuid).
+     */
+    boolean framed() default false;
 }
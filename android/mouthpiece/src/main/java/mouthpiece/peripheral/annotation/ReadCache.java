@@ -0,0 +1,19 @@
+package mouthpiece.peripheral.annotation;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * Put on an @OnRead method to answer reads from the value it returned last,
+ * without running it again, for 'maxAgeMillis'. With 'invalidateOnUpdate',
+ * an update of the value also makes it run again.
+ */
+@Retention(RUNTIME)
+@Target(METHOD)
+public @interface ReadCache {
+    int maxAgeMillis();
+    boolean invalidateOnUpdate() default true;
+}
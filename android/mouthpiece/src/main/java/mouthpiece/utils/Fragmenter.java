@@ -0,0 +1,110 @@
+/*
+* Copyright 2015 Lyo Kato (lyo.kato@gmail.com)
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package mouthpiece.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a value into packets which fit into one ATT payload,
+ * and puts them together again on the other side.
+ *
+ * Each fragment starts with one header byte
+ *
+ *   bit 7    : first fragment of the value
+ *   bit 6    : last fragment of the value
+ *   bit 0-5  : sequence number (mod 64)
+ *
+ * followed by the fragment body.
+ */
+public class Fragmenter {
+
+    public static final int HEADER_SIZE = 1;
+
+    public static final int FLAG_FIRST = 0x80;
+    public static final int FLAG_LAST  = 0x40;
+    public static final int SEQUENCE_MASK = 0x3F;
+
+    public static List<byte[]> split(byte[] value, int payloadSize) {
+        int bodySize = payloadSize - HEADER_SIZE;
+        if (bodySize <= 0) throw new IllegalArgumentException("payload size is too small: " + payloadSize);
+
+        List<byte[]> fragments = new ArrayList<byte[]>();
+        int offset = 0;
+        int sequence = 0;
+        do {
+            int len = Math.min(bodySize, value.length - offset);
+            byte[] fragment = new byte[HEADER_SIZE + len];
+            int header = sequence & SEQUENCE_MASK;
+            if (offset == 0)
+                header |= FLAG_FIRST;
+            if (offset + len == value.length)
+                header |= FLAG_LAST;
+            fragment[0] = (byte)header;
+            System.arraycopy(value, offset, fragment, HEADER_SIZE, len);
+            fragments.add(fragment);
+            offset += len;
+            sequence++;
+        } while (offset < value.length);
+        return fragments;
+    }
+
+    public static int countFragments(int valueLength, int payloadSize) {
+        int bodySize = payloadSize - HEADER_SIZE;
+        return Math.max(1, (valueLength + bodySize - 1) / bodySize);
+    }
+
+    public static class Reassembler {
+
+        private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private int expectedSequence = -1;
+
+        /**
+         * Returns the whole value when the last fragment arrived,
+         * otherwise null. Broken sequences are discarded.
+         */
+        public byte[] offer(byte[] fragment) {
+            if (fragment == null || fragment.length < HEADER_SIZE)
+                return null;
+
+            int header = fragment[0] & 0xFF;
+            int sequence = header & SEQUENCE_MASK;
+
+            if ((header & FLAG_FIRST) != 0) {
+                buffer.reset();
+            } else if (sequence != expectedSequence) {
+                reset();
+                return null;
+            }
+            buffer.write(fragment, HEADER_SIZE, fragment.length - HEADER_SIZE);
+            expectedSequence = (sequence + 1) & SEQUENCE_MASK;
+
+            if ((header & FLAG_LAST) != 0) {
+                byte[] value = buffer.toByteArray();
+                reset();
+                return value;
+            }
+            return null;
+        }
+
+        public void reset() {
+            buffer.reset();
+            expectedSequence = -1;
+        }
+    }
+}
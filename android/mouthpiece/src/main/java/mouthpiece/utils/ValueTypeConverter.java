@@ -49,6 +49,31 @@ public class ValueTypeConverter {
                 .array();
     }
 
+    /**
+     * Packs a MAC address like "00:11:22:AA:BB:CC" into the lower 48 bits of a long.
+     */
+    public static long longFromAddress(String address) {
+        if (address == null || address.length() != 17) throw new IllegalArgumentException("Invalid address: " + address);
+
+        long value = 0;
+        for (int i = 0; i < 17; i += 3) {
+            int high = hexDigit(address.charAt(i));
+            int low = hexDigit(address.charAt(i + 1));
+            if (high < 0 || low < 0 || (i + 2 < 17 && address.charAt(i + 2) != ':'))
+                throw new IllegalArgumentException("Invalid address: " + address);
+            value = (value << 8) | (high << 4) | low;
+        }
+        return value;
+    }
+
+    // only ASCII, Character.digit would accept other scripts' digits too
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9') return c - '0';
+        if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+        if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+        return -1;
+    }
+
     final protected static char[] hexArray = "0123456789ABCDEF".toCharArray();
 
     public static String hexFromBytes(byte[] bytes) {
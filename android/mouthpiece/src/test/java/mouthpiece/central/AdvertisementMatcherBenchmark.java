@@ -0,0 +1,223 @@
+/*
+* Copyright 2015 Lyo Kato (lyo.kato@gmail.com)
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package mouthpiece.central;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Compares AdvertisementMatcher with the former path, which got the
+ * service UUID list parsed by ScanRecord and compared it against targets
+ * parsed with UUID.fromString for every result.
+ *
+ * Runs on the JVM without Android:
+ *   java -cp <test classes>:<main classes> mouthpiece.central.AdvertisementMatcherBenchmark
+ */
+public class AdvertisementMatcherBenchmark {
+
+    private static final String[] TARGETS = {
+            "4c0a4f4b-0b2e-4f45-9a6a-3c7c1a2e9b10",
+            "0000180d-0000-1000-8000-00805f9b34fb",
+    };
+
+    private static final int RECORDS = 256;
+    private static final int WARMUP_ROUNDS = 200;
+    private static final int ROUNDS = 2000;
+
+    private static final long BASE_UUID_MSB = 0x0000000000001000L;
+    private static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+
+    public static void main(String[] args) {
+        byte[][] records = createRecords(new Random(1));
+        List<UUID> targets = new ArrayList<UUID>();
+        for (String target : TARGETS) {
+            targets.add(UUID.fromString(target));
+        }
+        AdvertisementMatcher matcher = new AdvertisementMatcher(targets);
+
+        // both paths must find the same targets
+        for (byte[] record : records) {
+            int expected = matchByParsing(record, TARGETS);
+            int actual = matcher.match(record);
+            if (expected != actual) {
+                throw new AssertionError("mismatch: " + expected + " != " + actual
+                        + " for " + Arrays.toString(record));
+            }
+        }
+
+        int sink = 0;
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            sink += runParsing(records);
+            sink += runMatcher(matcher, records);
+        }
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long before = allocatedBytes(threads);
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            sink += runParsing(records);
+        }
+        long parsingNanos = System.nanoTime() - start;
+        long parsingBytes = allocatedBytes(threads) - before;
+
+        before = allocatedBytes(threads);
+        start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            sink += runMatcher(matcher, records);
+        }
+        long matcherNanos = System.nanoTime() - start;
+        long matcherBytes = allocatedBytes(threads) - before;
+
+        long results = (long)ROUNDS * RECORDS;
+        System.out.println(String.format("parsing: %6.1f ns/result, %6.1f bytes/result",
+                (double)parsingNanos / results, (double)parsingBytes / results));
+        System.out.println(String.format("matcher: %6.1f ns/result, %6.1f bytes/result",
+                (double)matcherNanos / results, (double)matcherBytes / results));
+        System.out.println("(" + sink + ")");
+    }
+
+    private static int runParsing(byte[][] records) {
+        int found = 0;
+        for (byte[] record : records) {
+            if (matchByParsing(record, TARGETS) >= 0) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    private static int runMatcher(AdvertisementMatcher matcher, byte[][] records) {
+        int found = 0;
+        for (byte[] record : records) {
+            if (matcher.match(record) >= 0) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * The former path: a UUID list built from the record, as ScanRecord#getServiceUuids
+     * does, compared against the target strings.
+     */
+    private static int matchByParsing(byte[] record, String[] targets) {
+        List<UUID> uuids = parseServiceUuids(record);
+        for (UUID uuid : uuids) {
+            for (int i = 0; i < targets.length; i++) {
+                if (uuid.equals(UUID.fromString(targets[i]))) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static List<UUID> parseServiceUuids(byte[] record) {
+        List<UUID> uuids = new ArrayList<UUID>();
+        int pos = 0;
+        while (pos < record.length) {
+            int len = record[pos] & 0xFF;
+            if (len == 0 || pos + len >= record.length) {
+                break;
+            }
+            int type = record[pos + 1] & 0xFF;
+            byte[] data = Arrays.copyOfRange(record, pos + 2, pos + 1 + len);
+            int size = (type == 0x02 || type == 0x03) ? 2
+                    : (type == 0x04 || type == 0x05) ? 4
+                    : (type == 0x06 || type == 0x07) ? 16 : 0;
+            for (int i = 0; size > 0 && i + size <= data.length; i += size) {
+                uuids.add(toUuid(Arrays.copyOfRange(data, i, i + size)));
+            }
+            pos += len + 1;
+        }
+        return uuids;
+    }
+
+    private static UUID toUuid(byte[] bytes) {
+        if (bytes.length == 16) {
+            return new UUID(littleEndian(bytes, 8, 8), littleEndian(bytes, 0, 8));
+        }
+        return new UUID((littleEndian(bytes, 0, bytes.length) << 32) | BASE_UUID_MSB, BASE_UUID_LSB);
+    }
+
+    private static long littleEndian(byte[] bytes, int offset, int length) {
+        long value = 0;
+        for (int i = length - 1; i >= 0; i--) {
+            value = (value << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Typical advertisements: flags, a service UUID list which holds
+     * a target in a quarter of them, and manufacturer data.
+     */
+    private static byte[][] createRecords(Random random) {
+        UUID custom = UUID.fromString(TARGETS[0]);
+        byte[][] records = new byte[RECORDS][];
+        for (int r = 0; r < RECORDS; r++) {
+            byte[] record = new byte[31];
+            int pos = 0;
+            record[pos++] = 2;
+            record[pos++] = 0x01;
+            record[pos++] = 0x06;
+            if (r % 2 == 0) {
+                UUID uuid = (r % 8 == 0) ? custom : new UUID(random.nextLong(), random.nextLong());
+                record[pos++] = 17;
+                record[pos++] = 0x07;
+                putLittleEndian(record, pos, uuid.getLeastSignificantBits());
+                putLittleEndian(record, pos + 8, uuid.getMostSignificantBits());
+                pos += 16;
+            } else {
+                int short16 = (r % 8 == 1) ? 0x180D : 0x1800 + random.nextInt(0x100);
+                record[pos++] = 5;
+                record[pos++] = 0x03;
+                record[pos++] = (byte)0x0F;
+                record[pos++] = (byte)0x18;
+                record[pos++] = (byte)short16;
+                record[pos++] = (byte)(short16 >> 8);
+            }
+            int remaining = record.length - pos - 2;
+            record[pos++] = (byte)(remaining + 1);
+            record[pos++] = (byte)0xFF;
+            for (int i = 0; i < remaining; i++) {
+                record[pos++] = (byte)random.nextInt();
+            }
+            records[r] = record;
+        }
+        return records;
+    }
+
+    private static void putLittleEndian(byte[] bytes, int offset, long value) {
+        for (int i = 0; i < 8; i++) {
+            bytes[offset + i] = (byte)(value >>> (8 * i));
+        }
+    }
+
+    private static long allocatedBytes(ThreadMXBean threads) {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean)threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,207 @@
+/*
+* Copyright 2015 Lyo Kato (lyo.kato@gmail.com)
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package mouthpiece.peripheral;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AddressSetTest {
+
+    private static final int WRITERS = 4;
+    private static final int READERS = 4;
+    private static final int DEVICES_PER_WRITER = 8;
+    private static final int ROUNDS = 2000;
+
+    // stands in for BluetoothDevice, which is final and a stub on the JVM
+    private static class Device {
+
+        private final String address;
+
+        Device(String address) {
+            this.address = address;
+        }
+
+        String getAddress() {
+            return address;
+        }
+    }
+
+    private static class DeviceSet extends AddressSet<Device> {
+
+        @Override
+        String addressOf(Device device) {
+            return device.getAddress();
+        }
+
+        @Override
+        Device[] newArray(int length) {
+            return new Device[length];
+        }
+    }
+
+    private static Device device(String address) {
+        return new Device(address);
+    }
+
+    private static String address(int writer, int index) {
+        return String.format("00:11:22:33:%02X:%02X", writer, index);
+    }
+
+    @Test
+    public void addAndRemove() {
+        DeviceSet set = new DeviceSet();
+        Device a = device("00:11:22:33:44:55");
+        Device b = device("00:11:22:33:44:66");
+
+        assertTrue(set.isEmpty());
+        assertTrue(set.add(a));
+        assertFalse(set.add(device("00:11:22:33:44:55")));
+        assertTrue(set.add(b));
+        assertEquals(2, set.snapshot().length);
+
+        assertTrue(set.remove(device("00:11:22:33:44:55")));
+        assertFalse(set.remove(a));
+        assertEquals(1, set.snapshot().length);
+        assertEquals("00:11:22:33:44:66", set.snapshot()[0].getAddress());
+
+        set.clear();
+        assertTrue(set.isEmpty());
+    }
+
+    @Test
+    public void concurrentChangesWhileIterating() throws InterruptedException {
+        final DeviceSet set = new DeviceSet();
+
+        // these stay subscribed for the whole test, readers must always see them
+        final Set<String> permanent = new HashSet<String>();
+        for (int i = 0; i < DEVICES_PER_WRITER; i++) {
+            Device device = device(address(0xFF, i));
+            set.add(device);
+            permanent.add(device.getAddress());
+        }
+
+        final List<Device[]> writerDevices = new ArrayList<Device[]>();
+        for (int w = 0; w < WRITERS; w++) {
+            Device[] devices = new Device[DEVICES_PER_WRITER];
+            for (int i = 0; i < DEVICES_PER_WRITER; i++) {
+                devices[i] = device(address(w, i));
+            }
+            writerDevices.add(devices);
+        }
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch writersDone = new CountDownLatch(WRITERS);
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int w = 0; w < WRITERS; w++) {
+            final Device[] devices = writerDevices.get(w);
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int round = 0; round < ROUNDS; round++) {
+                            for (Device device : devices) {
+                                if (!set.add(device)) {
+                                    throw new AssertionError("already added: " + device.getAddress());
+                                }
+                            }
+                            for (Device device : devices) {
+                                if (!set.remove(device)) {
+                                    throw new AssertionError("lost: " + device.getAddress());
+                                }
+                            }
+                        }
+                        // leave them subscribed to check the final state
+                        for (Device device : devices) {
+                            set.add(device);
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        writersDone.countDown();
+                    }
+                }
+            }));
+        }
+
+        for (int r = 0; r < READERS; r++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        while (!stop.get()) {
+                            Set<String> seen = new HashSet<String>();
+                            for (Device device : set.snapshot()) {
+                                if (!seen.add(device.getAddress())) {
+                                    throw new AssertionError("duplicated: " + device.getAddress());
+                                }
+                            }
+                            if (!seen.containsAll(permanent)) {
+                                throw new AssertionError("permanent subscriber missing");
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            }));
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        assertTrue(writersDone.await(60, TimeUnit.SECONDS));
+        stop.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertNull(failure.get());
+
+        Set<String> expected = new HashSet<String>(permanent);
+        for (Device[] devices : writerDevices) {
+            for (Device device : devices) {
+                expected.add(device.getAddress());
+            }
+        }
+        Set<String> actual = new HashSet<String>();
+        for (Device device : set.snapshot()) {
+            actual.add(device.getAddress());
+        }
+        assertEquals(expected.size(), set.snapshot().length);
+        assertEquals(expected, actual);
+    }
+}
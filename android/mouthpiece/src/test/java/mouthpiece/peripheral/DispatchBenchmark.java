@@ -0,0 +1,214 @@
+/*
+* Copyright 2015 Lyo Kato (lyo.kato@gmail.com)
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package mouthpiece.peripheral;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import mouthpiece.peripheral.annotation.OnRead;
+import mouthpiece.peripheral.annotation.OnWrite;
+
+/**
+ * Compares a dispatcher in the shape MouthPieceProcessor generates with the
+ * reflective path MouthPieceService falls back to: the cost to register the
+ * handlers of a service, and the cost of a call through a registered handler.
+ *
+ * Runs on the JVM without Android:
+ *   java -cp <test classes>:<main classes>:android.jar mouthpiece.peripheral.DispatchBenchmark
+ *
+ * The numbers come from HotSpot, which compiles a hot Method.invoke down to
+ * a direct call; per-call figures on ART differ and need a run on a device.
+ */
+public class DispatchBenchmark {
+
+    private static final String READ_UUID = "00002a37-0000-1000-8000-00805f9b34fb";
+    private static final String WRITE_UUID = "00002a38-0000-1000-8000-00805f9b34fb";
+
+    private static final int WARMUP_ROUNDS = 20000;
+    private static final int REGISTER_ROUNDS = 20000;
+    private static final int CALL_ROUNDS = 5000000;
+
+    public static class SampleService extends MouthPieceService {
+
+        int reads = 0;
+        int writes = 0;
+
+        public SampleService() {
+            super("0000180d-0000-1000-8000-00805f9b34fb");
+        }
+
+        @OnRead(READ_UUID)
+        public void read(ReadRequest req, ReadResponse res) {
+            reads++;
+        }
+
+        @OnWrite(WRITE_UUID)
+        public void write(WriteRequest req, WriteResponse res) {
+            writes++;
+        }
+    }
+
+    /**
+     * What MouthPieceProcessor writes for SampleService.
+     */
+    static final class SampleDispatcher implements MouthPieceDispatcher<SampleService> {
+
+        @Override
+        public void register(final SampleService service, MouthPieceDispatcher.Registry registry) {
+            registry.addReadHandler(READ_UUID, new ReadHandler() {
+                @Override
+                public void onRead(ReadRequest req, ReadResponse res) {
+                    service.read(req, res);
+                }
+            });
+            registry.addWriteHandler(WRITE_UUID, new WriteHandler() {
+                @Override
+                public void onWrite(WriteRequest req, WriteResponse res) {
+                    service.write(req, res);
+                }
+            });
+        }
+    }
+
+    /**
+     * The lookup MouthPieceService#analyzeByReflection runs for every service instance.
+     */
+    static void registerByReflection(final MouthPieceService service, MouthPieceDispatcher.Registry registry) {
+        for (final Method method : service.getClass().getMethods()) {
+            OnRead onRead = method.getAnnotation(OnRead.class);
+            if (onRead != null) {
+                registry.addReadHandler(onRead.value(), new ReadHandler() {
+                    @Override
+                    public void onRead(ReadRequest req, ReadResponse res) {
+                        invoke(service, method, req, res);
+                    }
+                });
+                continue;
+            }
+            OnWrite onWrite = method.getAnnotation(OnWrite.class);
+            if (onWrite != null) {
+                registry.addWriteHandler(onWrite.value(), new WriteHandler() {
+                    @Override
+                    public void onWrite(WriteRequest req, WriteResponse res) {
+                        invoke(service, method, req, res);
+                    }
+                });
+            }
+        }
+    }
+
+    private static void invoke(Object target, Method method, Object... args) {
+        try {
+            method.invoke(target, args);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        } catch (InvocationTargetException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static class CollectingRegistry implements MouthPieceDispatcher.Registry {
+
+        final List<ReadHandler> readHandlers = new ArrayList<ReadHandler>();
+        final List<WriteHandler> writeHandlers = new ArrayList<WriteHandler>();
+
+        @Override
+        public void addReadHandler(String characteristicUUID, ReadHandler handler) {
+            readHandlers.add(handler);
+        }
+        @Override
+        public void addWriteHandler(String characteristicUUID, WriteHandler handler) {
+            writeHandlers.add(handler);
+        }
+        @Override
+        public void addBatchWriteHandler(String characteristicUUID, BatchWriteHandler handler,
+                int size, int maxDelayMillis) {}
+        @Override
+        public void setNotifiable(String characteristicUUID, boolean notifiable) {}
+        @Override
+        public void setIndicatable(String characteristicUUID, boolean indicatable) {}
+        @Override
+        public void setAlwaysNotify(String characteristicUUID, boolean always) {}
+        @Override
+        public void setFramedNotification(String characteristicUUID, boolean framed) {}
+        @Override
+        public void setMaxNotifyRate(String characteristicUUID, int perSecond) {}
+        @Override
+        public void setReadCache(String characteristicUUID, int maxAgeMillis, boolean invalidateOnUpdate) {}
+        @Override
+        public void setResponseNeeded(String characteristicUUID, boolean responseNeeded) {}
+    }
+
+    public static void main(String[] args) {
+        SampleService service = new SampleService();
+        SampleDispatcher dispatcher = new SampleDispatcher();
+
+        CollectingRegistry generated = new CollectingRegistry();
+        dispatcher.register(service, generated);
+        CollectingRegistry reflective = new CollectingRegistry();
+        registerByReflection(service, reflective);
+        if (generated.readHandlers.size() != reflective.readHandlers.size()
+                || generated.writeHandlers.size() != reflective.writeHandlers.size()) {
+            throw new AssertionError("both paths must register the same handlers");
+        }
+
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            dispatcher.register(service, new CollectingRegistry());
+            registerByReflection(service, new CollectingRegistry());
+            call(generated);
+            call(reflective);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < REGISTER_ROUNDS; i++) {
+            dispatcher.register(service, new CollectingRegistry());
+        }
+        long generatedRegister = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < REGISTER_ROUNDS; i++) {
+            registerByReflection(service, new CollectingRegistry());
+        }
+        long reflectiveRegister = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < CALL_ROUNDS; i++) {
+            call(generated);
+        }
+        long generatedCall = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < CALL_ROUNDS; i++) {
+            call(reflective);
+        }
+        long reflectiveCall = System.nanoTime() - start;
+
+        System.out.println(String.format("register  generated: %8.1f ns, reflection: %8.1f ns",
+                (double)generatedRegister / REGISTER_ROUNDS, (double)reflectiveRegister / REGISTER_ROUNDS));
+        System.out.println(String.format("read+write generated: %8.1f ns, reflection: %8.1f ns",
+                (double)generatedCall / CALL_ROUNDS, (double)reflectiveCall / CALL_ROUNDS));
+        System.out.println("(" + (service.reads + service.writes) + ")");
+    }
+
+    private static void call(CollectingRegistry registry) {
+        registry.readHandlers.get(0).onRead(null, null);
+        registry.writeHandlers.get(0).onWrite(null, null);
+    }
+}
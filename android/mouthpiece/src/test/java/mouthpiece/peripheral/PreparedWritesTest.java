@@ -0,0 +1,89 @@
+/*
+* Copyright 2015 Lyo Kato (lyo.kato@gmail.com)
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package mouthpiece.peripheral;
+
+import android.bluetooth.BluetoothGatt;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class PreparedWritesTest {
+
+    private static byte[] bytes(int from, int length) {
+        byte[] value = new byte[length];
+        for (int i = 0; i < length; i++) {
+            value[i] = (byte)(from + i);
+        }
+        return value;
+    }
+
+    // a pool whose only buffer still holds an earlier upload
+    private static BufferPool usedPool() {
+        BufferPool pool = new BufferPool(PreparedWrites.MAX_VALUE_LENGTH, 1);
+        byte[] used = pool.acquire();
+        Arrays.fill(used, (byte)0x5A);
+        pool.release(used);
+        return pool;
+    }
+
+    @Test
+    public void partsInOrder() {
+        PreparedWrites.Buffer buffer = new PreparedWrites.Buffer(usedPool().acquire());
+        assertEquals(BluetoothGatt.GATT_SUCCESS, buffer.append(0, bytes(0, 18)));
+        assertEquals(BluetoothGatt.GATT_SUCCESS, buffer.append(18, bytes(18, 18)));
+        assertEquals(BluetoothGatt.GATT_SUCCESS, buffer.append(36, bytes(36, 4)));
+        assertArrayEquals(bytes(0, 40), buffer.toByteArray());
+    }
+
+    @Test
+    public void overlappingPartsOutOfOrder() {
+        PreparedWrites.Buffer buffer = new PreparedWrites.Buffer(usedPool().acquire());
+        assertEquals(BluetoothGatt.GATT_SUCCESS, buffer.append(0, bytes(0, 20)));
+        assertEquals(BluetoothGatt.GATT_SUCCESS, buffer.append(10, bytes(10, 20)));
+        assertEquals(BluetoothGatt.GATT_SUCCESS, buffer.append(5, bytes(5, 5)));
+        assertEquals(BluetoothGatt.GATT_SUCCESS, buffer.append(30, new byte[0]));
+        assertArrayEquals(bytes(0, 30), buffer.toByteArray());
+    }
+
+    @Test
+    public void gapsAreRejected() {
+        PreparedWrites.Buffer buffer = new PreparedWrites.Buffer(usedPool().acquire());
+        // nothing written yet, bytes before offset 100 are from the earlier upload
+        assertEquals(BluetoothGatt.GATT_INVALID_OFFSET, buffer.append(100, bytes(100, 10)));
+        assertEquals(0, buffer.toByteArray().length);
+
+        assertEquals(BluetoothGatt.GATT_SUCCESS, buffer.append(0, bytes(0, 20)));
+        assertEquals(BluetoothGatt.GATT_INVALID_OFFSET, buffer.append(21, bytes(21, 10)));
+        assertEquals(BluetoothGatt.GATT_INVALID_OFFSET, buffer.append(-1, bytes(0, 1)));
+        assertEquals(BluetoothGatt.GATT_SUCCESS, buffer.append(20, bytes(20, 10)));
+        assertArrayEquals(bytes(0, 30), buffer.toByteArray());
+    }
+
+    @Test
+    public void tooLongIsRejected() {
+        PreparedWrites.Buffer buffer = new PreparedWrites.Buffer(usedPool().acquire());
+        assertEquals(BluetoothGatt.GATT_SUCCESS, buffer.append(0, bytes(0, 500)));
+        assertEquals(BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH, buffer.append(500, bytes(0, 13)));
+        assertEquals(BluetoothGatt.GATT_SUCCESS, buffer.append(500, bytes(0, 12)));
+        assertEquals(PreparedWrites.MAX_VALUE_LENGTH, buffer.toByteArray().length);
+    }
+}
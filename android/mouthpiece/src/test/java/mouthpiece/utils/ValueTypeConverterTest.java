@@ -0,0 +1,56 @@
+/*
+* Copyright 2015 Lyo Kato (lyo.kato@gmail.com)
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package mouthpiece.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ValueTypeConverterTest {
+
+    @Test
+    public void longFromAddress() {
+        assertEquals(0x001122AABBCCL, ValueTypeConverter.longFromAddress("00:11:22:AA:BB:CC"));
+        assertEquals(0x001122AABBCCL, ValueTypeConverter.longFromAddress("00:11:22:aa:bb:cc"));
+        assertEquals(0xFFFFFFFFFFFFL, ValueTypeConverter.longFromAddress("FF:FF:FF:FF:FF:FF"));
+    }
+
+    @Test
+    public void longFromMalformedAddress() {
+        String[] addresses = {
+                null,
+                "",
+                "00:11:22:AA:BB",
+                "00:11:22:AA:BB:CC:",
+                "00:11:22:AA:BB:CG",
+                "0G:11:22:AA:BB:CC",
+                "00-11-22-AA-BB-CC",
+                "00:11:22:AA:BB: C",
+                "00:11:22:AA:BB:\uFF11\uFF12",
+        };
+        for (String address : addresses) {
+            try {
+                ValueTypeConverter.longFromAddress(address);
+                fail("accepted " + address);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+}